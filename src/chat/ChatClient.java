@@ -8,9 +8,15 @@ import java.nio.charset.StandardCharsets;
 import java.security.*;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class ChatClient {
-    // cache normalized -> PublicKey
+    // cache normalized -> device public keys
     private static final Map<String, PublicKeyHolder> pubKeyCache = new ConcurrentHashMap<>();
     // ANSI color codes
     private static final String[] COLORS = {
@@ -25,18 +31,47 @@ public class ChatClient {
 
     private static class PublicKeyHolder {
         final String displayName;
-        final java.security.PublicKey key;
-        PublicKeyHolder(String displayName, java.security.PublicKey key) {
+        final Map<String, java.security.PublicKey> devices;   // deviceId -> key
+        PublicKeyHolder(String displayName, Map<String, java.security.PublicKey> devices) {
             this.displayName = displayName;
-            this.key = key;
+            this.devices = devices;
         }
     }
 
-    // connection state
+    // identity, kept in memory so reconnects skip the passphrase unlock
+    private String displayName, normalized;
+    private PrivateKey myPriv;
+    private String myPubB64;
+
+    // connection state; the socket is replaced on every reconnect
+    private volatile boolean running = true;      // false once the user quits
     private volatile boolean connected = false;
-    private Socket socket = null;
-    private BufferedReader in = null;
-    private PrintWriter out = null;
+    private volatile Socket socket = null;
+    private volatile BufferedReader in = null;
+    private volatile PrintWriter out = null;
+
+    // server message ids processed but not yet acknowledged; flushed as coalesced ranges
+    private final TreeSet<Integer> pendingAcks = new TreeSet<>();
+    // recently handled server ids, so a redelivery after reconnect is acked but not shown twice
+    private final Set<Integer> seenIds = Collections.newSetFromMap(new LinkedHashMap<Integer, Boolean>() {
+        @Override protected boolean removeEldestEntry(Map.Entry<Integer, Boolean> e) { return size() > Config.SEEN_IDS; }
+    });
+    private ScheduledExecutorService timers = null;
+
+    // sent MSG lines the server hasn't confirmed; survives restarts
+    private Outbox outbox = null;
+    // clientMsgIds written on this connection and not yet answered; never resent while here
+    private final Set<String> outboxInFlight = ConcurrentHashMap.newKeySet();
+    // paces outbox sends below the server's MSG and per-connection limits (timers thread only)
+    private final TokenBucket outboxBucket = new TokenBucket(Config.OUTBOX_BURST, Config.OUTBOX_RATE);
+    private final AtomicBoolean outboxPumpQueued = new AtomicBoolean(false);
+    private final AtomicBoolean outboxPumpDelayed = new AtomicBoolean(false);
+
+    // local encrypted scrollback, searchable across sessions
+    private HistoryStore history = null;
+
+    // JLine prompt + coalesced output renderer; null until registration succeeds
+    private volatile TerminalUI ui = null;
 
     public static void main(String[] args) {
         String displayName = null;
@@ -79,8 +114,11 @@ public class ChatClient {
                 return;
             }
 
+            // linking this install as an extra device: code from /link on an existing device
+            String linkCode = args.length >= 3 ? args[2] : System.getenv("CHAT_LINK_CODE");
+
             ChatClient client = new ChatClient();
-            client.runClient(displayName, pass);
+            client.runClient(displayName, pass, linkCode);
 
         } catch (Exception e) {
             System.err.println("Client error: " + e.getMessage());
@@ -88,138 +126,106 @@ public class ChatClient {
         }
     }
 
-    private void runClient(String displayName, String passphrase) throws Exception {
-        String normalized = displayName.toLowerCase();
+    private void runClient(String displayName, String passphrase, String linkCode) throws Exception {
+        this.displayName = displayName;
+        this.normalized = displayName.toLowerCase();
 
         // load or create persistent keypair (local file encrypted with pass)
         KeyPair kp = KeyManager.loadOrCreateWithPass(normalized, passphrase);
-        PrivateKey myPriv = kp.getPrivate();
-        PublicKey myPub = kp.getPublic();
-        String myPubB64 = Encryptor.publicKeyToBase64(myPub);
-
-        // Connect to server
-        socket = new Socket("localhost", Config.PORT);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-        out = new PrintWriter(socket.getOutputStream(), true);
-        connected = true;
+        myPriv = kp.getPrivate();
+        myPubB64 = Encryptor.publicKeyToBase64(kp.getPublic());
+        history = HistoryStore.open(normalized, KeyManager.deriveStorageKey(normalized, passphrase, "history"));
+        outbox = Outbox.open(normalized, KeyManager.deriveStorageKey(normalized, passphrase, "outbox"));
 
         // Ensure cleanup on Ctrl+C
         Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
 
-        // Register (server creates user if not exists; rejects if existing user's pubkey differs)
-        out.println("REGISTER:" + displayName + ":" + myPubB64);
-        String resp = in.readLine();
-        if (resp == null) {
-            System.out.println("Server closed connection.");
-            shutdown();
-            return;
-        }
-        if (resp.startsWith("ERROR:")) {
-            System.out.println("Registration failed: " + resp);
+        // First connection. Registration errors here are final (unknown key, bad link code);
+        // later reconnects reuse the unlocked key and never need a link code.
+        String err = connectAndRegister(linkCode);
+        if (err != null) {
+            System.out.println("Registration failed: " + err);
+            if (err.equals("ERROR:USERNAME_TAKEN")) {
+                System.out.println("If this is a new device of yours, run /link on a logged-in device and pass the code here.");
+            }
             shutdown();
             return;
-        } else if (resp.equals("REGISTERED")) {
-            System.out.println("Registered successfully as " + displayName);
-        } else {
-            System.out.println("Server says: " + resp);
         }
+        System.out.println("Registered successfully as " + displayName);
 
-        // Reader thread: handles PUB, LIST, MSGFROM, SENT, SAVED, ERROR
-        Thread reader = new Thread(() -> {
-            try {
-                String line;
-                while (connected && (line = in.readLine()) != null) {
-                    if (line.startsWith("PUB:")) {
-                        String[] p = line.split(":", 3);
-                        if (p.length == 3) {
-                            String dname = p[1];
-                            String keyB64 = p[2];
-                            String norm = dname.toLowerCase();
-                            try {
-                                java.security.PublicKey pk = Encryptor.publicKeyFromBase64(keyB64);
-                                pubKeyCache.put(norm, new PublicKeyHolder(dname, pk));
-                                System.out.println("[PK] Cached public key for " + dname);
-                            } catch (Exception ex) {
-                                System.out.println("[PK] Failed to parse public key for " + dname);
-                            }
-                        }
-                    } else if (line.startsWith("LIST:")) {
-                        String rest = line.substring("LIST:".length());
-                        System.out.println("Online: " + rest);
-                    } else if (line.startsWith("MSGFROM:")) {
-                        String[] p = line.split(":", 5);
-                        if (p.length == 5) {
-                            String senderDisplay = p[1];
-                            String encKeyB64 = p[2];
-                            String ivB64 = p[3];
-                            String cipherB64 = p[4];
-                            try {
-                                byte[] encKey = Encryptor.fromBase64(encKeyB64);
-                                byte[] aesKeyBytes = Encryptor.rsaDecrypt(encKey, myPriv);
-                                SecretKey aesKey = new SecretKeySpec(aesKeyBytes, "AES");
-                                byte[] iv = Encryptor.fromBase64(ivB64);
-                                byte[] cipher = Encryptor.fromBase64(cipherB64);
-                                byte[] plain = Encryptor.aesGcmDecrypt(iv, cipher, aesKey);
-                                String message = new String(plain, StandardCharsets.UTF_8);
-                                System.out.println(colorize(senderDisplay) + senderDisplay + RESET + " -> " + message);
-                            } catch (IllegalArgumentException iae) {
-                                System.out.println("[MSG] Invalid Base64 data from " + senderDisplay);
-                            } catch (Exception ex) {
-                                System.out.println("[MSG] Failed to decrypt incoming message from " + senderDisplay);
-                            }
-                        }
-                    } else if (line.startsWith("SENT:")) {
-                        System.out.println("[Ack] " + line.substring("SENT:".length()));
-                    } else if (line.startsWith("SAVED:")) {
-                        String who = line.substring("SAVED:".length());
-                        System.out.println("[Saved Offline] " + who);
-                    } else if (line.startsWith("ERROR:")) {
-                        System.out.println(line);
-                    } else {
-                        System.out.println("[Server] " + line);
-                    }
-                }
-            } catch (IOException ioe) {
-                if (connected) {
-                    System.out.println("Disconnected from server: " + ioe.getMessage());
-                }
-            } finally {
-                // Ensure full process exit so writer loop doesn't hang waiting for input
-                shutdown();
-                // ensure JVM exits so console doesn't become weirdly unresponsive
-                System.exit(0);
-            }
-        }, "ReaderThread");
-        reader.setDaemon(true);
-        reader.start();
+        timers = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "ClientTimers");
+            t.setDaemon(true);
+            return t;
+        });
+        timers.scheduleWithFixedDelay(this::flushAcks, Config.ACK_FLUSH_MS, Config.ACK_FLUSH_MS, TimeUnit.MILLISECONDS);
+
+        ui = new TerminalUI();
+        afterRegister();
+
+        // Connection thread: reads server lines; on a drop, reconnects with backoff and keeps going
+        Thread conn = new Thread(this::connectionLoop, "ConnectionThread");
+        conn.setDaemon(true);
+        conn.start();
 
         // Writer loop (user input)
-        System.out.println("Commands: @username message | GETPUB username | LIST | /quit");
-        Scanner sc = new Scanner(System.in);
-        while (connected) {
+        print("Commands: @username message | GETPUB username | LIST | /search terms | /history @username | /sync @username [beforeId] | /scroll [n] | /link | /quit");
+        while (running) {
             try {
-                if (!sc.hasNextLine()) break; // EOF
-                String line = sc.nextLine().trim();
+                String line = ui.readLine("> ");
+                if (line == null) break; // EOF / Ctrl+C
+                line = line.trim();
                 if (line.isEmpty()) continue;
                 if (line.equalsIgnoreCase("/quit")) {
-                    out.println("/quit"); // optional notify (server ignores)
-                    shutdown();
+                    send("/quit"); // optional notify (server ignores)
                     break;
                 }
                 if (line.equalsIgnoreCase("LIST")) {
-                    out.println("LIST");
+                    if (!send("LIST")) print("[Net] Not connected.");
+                    continue;
+                }
+                if (line.toLowerCase().startsWith("/scroll")) {
+                    String arg = line.substring(7).trim();
+                    int n = arg.matches("\\d+") ? Integer.parseInt(arg) : 50;
+                    ui.printBlock(ui.scrollback(n));
+                    continue;
+                }
+                if (line.toLowerCase().startsWith("/search ")) {
+                    List<HistoryStore.Entry> hits = history.search(line.substring(8), Config.HISTORY_PAGE);
+                    if (hits.isEmpty()) print("[History] No matches.");
+                    printHistory(hits);
+                    continue;
+                }
+                if (line.toLowerCase().startsWith("/history ")) {
+                    String peer = line.substring(9).trim();
+                    if (peer.startsWith("@")) peer = peer.substring(1);
+                    List<HistoryStore.Entry> page = history.history(peer, Config.HISTORY_PAGE);
+                    if (page.isEmpty()) print("[History] Nothing with " + peer + ".");
+                    printHistory(page);
+                    continue;
+                }
+                if (line.equalsIgnoreCase("/link")) {
+                    if (!send("LINK")) print("[Net] Not connected.");
+                    continue;
+                }
+                if (line.toLowerCase().startsWith("/sync ")) {
+                    // page through what the server still holds for this conversation
+                    String[] p = line.substring(6).trim().split("\\s+");
+                    String peer = p[0].startsWith("@") ? p[0].substring(1) : p[0];
+                    String before = p.length > 1 ? p[1] : "0";
+                    if (!send("HISTORY:" + peer.toLowerCase() + ":" + before + ":" + Config.HISTORY_PAGE)) print("[Net] Not connected.");
                     continue;
                 }
                 if (line.toUpperCase().startsWith("GETPUB ")) {
                     String target = line.substring(7).trim().toLowerCase();
-                    out.println("GETPUB:" + target);
+                    if (!send("GETPUB:" + target)) print("[Net] Not connected.");
                     continue;
                 }
 
                 if (line.startsWith("@")) {
                     int spaceIdx = line.indexOf(' ');
                     if (spaceIdx == -1) {
-                        System.out.println("Invalid format. Use: @username message");
+                        print("Invalid format. Use: @username message");
                         continue;
                     }
                     String targetDisplay = line.substring(1, spaceIdx).trim();
@@ -228,55 +234,437 @@ public class ChatClient {
 
                     PublicKeyHolder holder = pubKeyCache.get(targetNorm);
                     if (holder == null) {
-                        out.println("GETPUB:" + targetNorm);
+                        send("GETPUB:" + targetNorm);
                         int attempts = 0;
                         while (attempts < 20 && (holder = pubKeyCache.get(targetNorm)) == null) {
                             Thread.sleep(100);
                             attempts++;
                         }
                         if (holder == null) {
-                            System.out.println("User public key not found for " + targetDisplay + ". Use LIST or GETPUB.");
+                            print("User public key not found for " + targetDisplay + ". Use LIST or GETPUB.");
                             continue;
                         }
                     }
 
                     try {
+                        // one ciphertext; the content key is wrapped once per device
                         SecretKey aesKey = Encryptor.generateAESKey();
                         Encryptor.AesResult aesRes = Encryptor.aesGcmEncrypt(msg.getBytes(StandardCharsets.UTF_8), aesKey);
                         byte[] aesKeyBytes = aesKey.getEncoded();
-                        byte[] encAesKey = Encryptor.rsaEncrypt(aesKeyBytes, holder.key);
 
-                        String encKeyB64 = Encryptor.toBase64(encAesKey);
+                        StringBuilder wraps = new StringBuilder();
+                        appendWraps(wraps, "", holder, aesKeyBytes);
+                        PublicKeyHolder own = pubKeyCache.get(normalized);
+                        if (own != null && !targetNorm.equals(normalized)) appendWraps(wraps, "@", own, aesKeyBytes);
+
                         String ivB64 = Encryptor.toBase64(aesRes.iv);
                         String cipherB64 = Encryptor.toBase64(aesRes.cipherText);
 
-                        out.println("MSG:" + targetNorm + ":" + encKeyB64 + ":" + ivB64 + ":" + cipherB64);
+                        // on disk before it goes out, so a drop or crash can't lose it
+                        String clientMsgId = UUID.randomUUID().toString();
+                        String msgLine = "MSG:" + targetNorm + ":" + clientMsgId + ":" + wraps + ":" + ivB64 + ":" + cipherB64;
+                        outbox.add(clientMsgId, msgLine);
+                        if (connected) requestOutboxPump(0);
+                        else print("[Queued] " + targetDisplay + " (sent when reconnected)");
+                        history.append(System.currentTimeMillis(), true, holder.displayName, msg);
                     } catch (Exception ex) {
-                        System.out.println("Encryption failed: " + ex.getMessage());
+                        print("Encryption failed: " + ex.getMessage());
                     }
                     continue;
                 }
 
-                System.out.println("Unknown command. Use @username message, LIST, GETPUB <user>, /quit");
+                print("Unknown command. Use @username message, LIST, GETPUB <user>, /search <terms>, /history @user, /sync @user, /scroll, /link, /quit");
             } catch (InterruptedException ie) {
                 // continue loop
+            } catch (IOException ioe) {
+                print("[History] " + ioe.getMessage());
             }
         }
 
-        sc.close();
         shutdown();
     }
 
-    private void shutdown() {
-        if (!connected && socket == null) return;
+    // Open a socket and REGISTER. Returns null once registered, else the server's answer.
+    private String connectAndRegister(String linkCode) throws Exception {
+        Socket s = Tls.connect(Config.HOST, Config.PORT);
+        // server PINGs idle sessions, so this much silence means the connection is dead
+        s.setSoTimeout((int) Config.IDLE_TIMEOUT_MS);
+        s.setKeepAlive(true);
+        s.setTcpNoDelay(true);
+        BufferedReader r = new BufferedReader(new InputStreamReader(s.getInputStream()));
+        PrintWriter w = new PrintWriter(s.getOutputStream(), true);
+
+        // Register (server creates user if not exists; an unknown key for an existing user needs a link code)
+        boolean linking = linkCode != null && !linkCode.trim().isEmpty();
+        w.println("REGISTER:" + displayName + ":" + myPubB64 + (linking ? ":" + linkCode.trim() : ""));
+        String resp = r.readLine();
+        if (resp != null && resp.startsWith("CHALLENGE:")) {
+            // prove we hold this device's private key
+            byte[] sig = Encryptor.sign(Encryptor.registerProofData(normalized, resp.substring("CHALLENGE:".length())), myPriv);
+            w.println("PROOF:" + Encryptor.toBase64(sig));
+            resp = r.readLine();
+        }
+        if (!"REGISTERED".equals(resp)) {
+            try { s.close(); } catch (IOException ignored) {}
+            return resp == null ? "Server closed connection." : resp;
+        }
+        socket = s;
+        in = r;
+        out = w;
+        connected = true;
+        return null;
+    }
+
+    private void afterRegister() {
+        // own device keys, so sent messages can also be sealed for our other devices
+        send("GETPUB:" + normalized);
+        flushAcks();
+        // a new connection has nothing in flight: everything still in the outbox goes again
+        outboxInFlight.clear();
+        int queued = outbox.size();
+        if (queued > 0) print("[Outbox] Resending " + queued + " queued message(s).");
+        requestOutboxPump(0);
+    }
+
+    private void connectionLoop() {
+        while (running) {
+            try {
+                String line;
+                while (connected && (line = in.readLine()) != null) {
+                    handleLine(line);
+                }
+            } catch (IOException ioe) {
+                if (running) print("Disconnected from server: " + ioe.getMessage());
+            }
+            if (!running) break;
+            connected = false;
+            closeSocket();
+            print("[Net] Connection lost; reconnecting. Messages you send meanwhile are queued.");
+            if (!reconnect()) break;
+        }
+    }
+
+    // Exponential backoff with jitter (random in [cap/2, cap]) so a restarted server isn't hit
+    // by every client at the same instant. Returns false if the server refused us for good.
+    private boolean reconnect() {
+        for (int attempt = 0; running; attempt++) {
+            long cap = Math.min(Config.RECONNECT_MAX_MS, Config.RECONNECT_BASE_MS << Math.min(attempt, 16));
+            try {
+                Thread.sleep(ThreadLocalRandom.current().nextLong(cap / 2, cap + 1));
+            } catch (InterruptedException ie) {
+                return false;
+            }
+            try {
+                String err = connectAndRegister(null);
+                if (err == null) {
+                    print("[Net] Reconnected.");
+                    afterRegister();
+                    return true;
+                }
+                // BUSY: load shedding; anything else but a dropped connection won't change on retry
+                if (!err.equals("ERROR:BUSY") && !err.startsWith("Server closed")) {
+                    print("[Net] Reconnect refused: " + err + ". Queued messages stay in the outbox; /quit to exit.");
+                    return false;
+                }
+            } catch (Exception e) {
+                // server still unreachable; back off further
+            }
+        }
+        return false;
+    }
+
+    // Handles PUB, LIST, MSGFROM, HISTORY, SENT, SAVED, REJECTED, ERROR
+    private void handleLine(String line) {
+        if (line.equals("PING")) {
+            send("PONG");
+        } else if (line.startsWith("PUB:")) {
+            // PUB:<display>:<deviceId>.<key>,...
+            String[] p = line.split(":", 3);
+            if (p.length == 3) {
+                String dname = p[1];
+                String norm = dname.toLowerCase();
+                try {
+                    Map<String, java.security.PublicKey> devices = new LinkedHashMap<>();
+                    for (String d : p[2].split(",")) {
+                        int dot = d.indexOf('.');
+                        if (dot <= 0) continue;
+                        devices.put(d.substring(0, dot), Encryptor.publicKeyFromBase64(d.substring(dot + 1)));
+                    }
+                    PublicKeyHolder old = pubKeyCache.put(norm, new PublicKeyHolder(dname, devices));
+                    if (old == null || !old.devices.keySet().equals(devices.keySet())) {
+                        print("[PK] Cached " + devices.size() + " device key(s) for " + dname);
+                    }
+                } catch (Exception ex) {
+                    print("[PK] Failed to parse public key for " + dname);
+                }
+            }
+        } else if (line.startsWith("LINKCODE:")) {
+            String code = line.substring("LINKCODE:".length());
+            print("[Link] On the new device run: ChatClient " + displayName + " <passphrase> " + code
+                    + "  (or set CHAT_LINK_CODE=" + code + "). Valid for " + (Config.LINK_CODE_TTL_MS / 60_000) + " minutes.");
+        } else if (line.startsWith("LIST:")) {
+            String rest = line.substring("LIST:".length());
+            print("Online: " + rest);
+        } else if (line.startsWith("MSGFROM:")) {
+            // MSGFROM:<sender>:<serverId>:<encKey>:<iv>:<cipher>
+            String[] p = line.split(":", 6);
+            if (p.length == 6) {
+                String senderDisplay = p[1];
+                int msgId;
+                try {
+                    msgId = Integer.parseInt(p[2]);
+                } catch (NumberFormatException nfe) {
+                    print("[MSG] Bad message id from server");
+                    return;
+                }
+                // redelivered after a reconnect because our ACK didn't make it: ack again, don't show twice
+                if (seenIds.contains(msgId)) {
+                    queueAck(msgId);
+                    return;
+                }
+                String encKeyB64 = p[3];
+                String ivB64 = p[4];
+                String cipherB64 = p[5];
+                try {
+                    byte[] encKey = Encryptor.fromBase64(encKeyB64);
+                    byte[] aesKeyBytes = Encryptor.rsaDecrypt(encKey, myPriv);
+                    SecretKey aesKey = new SecretKeySpec(aesKeyBytes, "AES");
+                    byte[] iv = Encryptor.fromBase64(ivB64);
+                    byte[] cipher = Encryptor.fromBase64(cipherB64);
+                    byte[] plain = Encryptor.aesGcmDecrypt(iv, cipher, aesKey);
+                    String message = new String(plain, StandardCharsets.UTF_8);
+                    print(colorize(senderDisplay) + senderDisplay + RESET + " -> " + message);
+                    history.append(System.currentTimeMillis(), false, senderDisplay, message);
+                } catch (IllegalArgumentException iae) {
+                    print("[MSG] Invalid Base64 data from " + senderDisplay);
+                } catch (Exception ex) {
+                    print("[MSG] Failed to decrypt incoming message from " + senderDisplay);
+                }
+                // ACK once processed. Undecryptable messages are acked too: redelivery
+                // would fail the same way and just pin a slot in the server's window.
+                seenIds.add(msgId);
+                queueAck(msgId);
+            }
+        } else if (line.startsWith("HISTORY:")) {
+            printServerHistory(line, myPriv);
+        } else if (line.startsWith("SENT:")) {
+            String payload = line.substring("SENT:".length());
+            confirmOutbox(payload);
+            print("[Ack] " + targetOf(payload));
+        } else if (line.startsWith("SAVED:")) {
+            String payload = line.substring("SAVED:".length());
+            confirmOutbox(payload);
+            print("[Saved Offline] " + targetOf(payload));
+        } else if (line.startsWith("REJECTED:")) {
+            // REJECTED:<target>:<clientMsgId>:<reason>; final, so it leaves the outbox
+            String[] p = line.split(":", 4);
+            if (p.length == 4) {
+                confirmOutbox(p[1] + ":" + p[2]);
+                if (p[3].equals("STALE_DEVICES")) {
+                    print("[Rejected] " + p[1] + " changed devices; key list refreshed, please send again.");
+                } else {
+                    print("[Rejected] " + p[1] + ": " + p[3]);
+                }
+            }
+        } else if (line.startsWith("ERROR:RATE_LIMITED:MSG:") || line.startsWith("ERROR:BUSY:MSG:")) {
+            // ERROR:<reason>:MSG:<clientMsgId>; the outbox still holds it, so only that line goes again
+            outboxInFlight.remove(line.substring(line.indexOf(":MSG:") + ":MSG:".length()));
+            if (requestOutboxPump(Config.OUTBOX_RETRY_MS)) print("[Outbox] Server is throttling; retrying queued messages shortly.");
+        } else if (line.startsWith("ERROR:")) {
+            print(line);
+        } else {
+            print("[Server] " + line);
+        }
+    }
+
+    private boolean send(String line) {
+        PrintWriter o = out;
+        if (!connected || o == null) return false;
+        o.println(line);
+        return true;
+    }
+
+    // Send the next queued MSG lines, all in one write. At most OUTBOX_WINDOW wait for an answer
+    // at a time and the client-side bucket keeps the rate under the server's MSG limits, so a
+    // large backlog after a reconnect neither gets refused nor starves the user's own commands.
+    // Answers release more (requestOutboxPump); refused lines leave outboxInFlight and go again.
+    // Runs on the timers thread only, so batches go out in order.
+    private void pumpOutbox() {
+        PrintWriter o = out;
+        if (!connected || o == null) return;
+        Map<String, String> next = outbox.next(Config.OUTBOX_WINDOW - outboxInFlight.size(), outboxInFlight);
+        StringBuilder sb = new StringBuilder();
+        int sent = 0;
+        for (Map.Entry<String, String> e : next.entrySet()) {
+            if (!outboxBucket.tryAcquire()) break;
+            outboxInFlight.add(e.getKey());
+            sb.append(e.getValue()).append('\n');
+            sent++;
+        }
+        if (sent > 0) {
+            o.print(sb);
+            o.flush();
+        }
+        // bucket ran dry with lines waiting: come back when the next token is due
+        if (sent < next.size()) requestOutboxPump((long) Math.ceil(1000 / Config.OUTBOX_RATE));
+    }
+
+    // Run pumpOutbox on the timers thread, now (delayMs 0) or later; requests coalesce.
+    // Returns true if this call scheduled a new run.
+    private boolean requestOutboxPump(long delayMs) {
+        ScheduledExecutorService t = timers;
+        if (t == null) return false;
+        AtomicBoolean flag = delayMs <= 0 ? outboxPumpQueued : outboxPumpDelayed;
+        if (!flag.compareAndSet(false, true)) return false;
+        try {
+            t.schedule(() -> {
+                flag.set(false);
+                pumpOutbox();
+            }, Math.max(0, delayMs), TimeUnit.MILLISECONDS);
+            return true;
+        } catch (RejectedExecutionException ree) {
+            return false;   // shutting down
+        }
+    }
+
+    // SENT/SAVED/REJECTED payload starts with <target>:<clientMsgId>
+    private void confirmOutbox(String payload) {
+        String[] p = payload.split(":", 3);
+        if (p.length < 2) return;
+        try {
+            outbox.remove(p[1]);
+        } catch (IOException ioe) {
+            print("[Outbox] " + ioe.getMessage());
+        }
+        outboxInFlight.remove(p[1]);
+        requestOutboxPump(0);
+    }
+
+    // "<prefix><deviceId>.<rsa(contentKey)>" for every device in holder, comma separated
+    private static void appendWraps(StringBuilder sb, String prefix, PublicKeyHolder holder, byte[] contentKey) throws Exception {
+        for (Map.Entry<String, java.security.PublicKey> d : holder.devices.entrySet()) {
+            if (sb.length() > 0) sb.append(',');
+            sb.append(prefix).append(d.getKey()).append('.')
+              .append(Encryptor.toBase64(Encryptor.rsaEncrypt(contentKey, d.getValue())));
+        }
+    }
+
+    private void queueAck(int msgId) {
+        boolean flushNow;
+        synchronized (pendingAcks) {
+            pendingAcks.add(msgId);
+            flushNow = pendingAcks.size() >= Config.ACK_BATCH_SIZE;
+        }
+        if (flushNow) flushAcks();
+    }
+
+    // Send all pending ACKs as one line of coalesced ranges: ACK:3-7,9,12-15
+    private void flushAcks() {
+        StringBuilder sb = new StringBuilder("ACK:");
+        synchronized (pendingAcks) {
+            if (pendingAcks.isEmpty() || !connected) return;
+            int start = -1, prev = -1;
+            for (int id : pendingAcks) {
+                if (start == -1) {
+                    start = prev = id;
+                } else if (id == prev + 1) {
+                    prev = id;
+                } else {
+                    appendRange(sb, start, prev);
+                    start = prev = id;
+                }
+            }
+            appendRange(sb, start, prev);
+            pendingAcks.clear();
+        }
+        send(sb.toString());
+    }
+
+    private static void appendRange(StringBuilder sb, int lo, int hi) {
+        if (sb.charAt(sb.length() - 1) != ':') sb.append(',');
+        sb.append(lo);
+        if (hi != lo) sb.append('-').append(hi);
+    }
+
+    // SENT/SAVED payload is <target>:<clientMsgId>; show just the target
+    private static String targetOf(String payload) {
+        int idx = payload.indexOf(':');
+        return idx == -1 ? payload : payload.substring(0, idx);
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        try { if (s != null && !s.isClosed()) s.close(); } catch (IOException ignored) {}
+    }
+
+    // Runs once, from /quit, EOF or the shutdown hook. Unconfirmed messages stay in the outbox
+    // and go out on the next start.
+    private synchronized void shutdown() {
+        if (!running) return;
+        flushAcks();
+        running = false;
         connected = false;
-        System.out.println("Shutting down client...");
-        try { if (in != null) in.close(); } catch (IOException ignored) {}
-        try { if (out != null) out.close(); } catch (Exception ignored) {}
-        try { if (socket != null && !socket.isClosed()) socket.close(); } catch (IOException ignored) {}
+        if (timers != null) timers.shutdownNow();
+        print("Shutting down client...");
+        closeSocket();
+        if (outbox != null) {
+            int queued = outbox.size();
+            if (queued > 0) print("[Outbox] " + queued + " message(s) not yet confirmed; they will be resent next time.");
+            outbox.close();
+        }
+        if (history != null) history.close();
+        if (ui != null) ui.close();
         System.out.println("Client shut down cleanly.");
     }
 
+    // everything after registration goes through the renderer so it never fights the prompt
+    private void print(String line) {
+        TerminalUI u = ui;
+        if (u != null) u.print(line);
+        else System.out.println(line);
+    }
+
+    // HISTORY:<peer>:<nextBeforeId>:<id>,<ts>,<i|o>,<encKey>,<iv>,<cipher>;...  (newest first)
+    private void printServerHistory(String line, PrivateKey myPriv) {
+        String[] p = line.split(":", 4);
+        if (p.length < 4) return;
+        String peer = p[1];
+        String next = p[2];
+        java.text.SimpleDateFormat fmt = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm");
+        String[] rows = p[3].isEmpty() ? new String[0] : p[3].split(";");
+        if (rows.length == 0) print("[Sync] No stored messages with " + peer + ".");
+        for (int i = rows.length - 1; i >= 0; i--) {
+            String[] f = rows[i].split(",");
+            if (f.length != 6 || !f[1].matches("\\d+")) continue;
+            String when = "[" + fmt.format(new Date(Long.parseLong(f[1]))) + "] ";
+            String who = f[2].equals("o") ? "you -> " + peer : colorize(peer) + peer + RESET + " -> you";
+            if (f[3].isEmpty()) {
+                // stored before this device was linked, so no key was wrapped for it
+                print(when + who + ": (not sealed for this device)");
+                continue;
+            }
+            try {
+                byte[] aesKeyBytes = Encryptor.rsaDecrypt(Encryptor.fromBase64(f[3]), myPriv);
+                byte[] plain = Encryptor.aesGcmDecrypt(Encryptor.fromBase64(f[4]), Encryptor.fromBase64(f[5]),
+                        new SecretKeySpec(aesKeyBytes, "AES"));
+                print(when + who + ": " + new String(plain, StandardCharsets.UTF_8));
+            } catch (Exception ex) {
+                print(when + "[Sync] Failed to decrypt message " + f[0] + " with " + peer);
+            }
+        }
+        if (!next.equals("0")) print("[Sync] Older messages: /sync @" + peer + " " + next);
+    }
+
+    // results come newest-first; print oldest-first like a transcript
+    private void printHistory(List<HistoryStore.Entry> entries) {
+        java.text.SimpleDateFormat fmt = new java.text.SimpleDateFormat("yyyy-MM-dd HH:mm");
+        for (int i = entries.size() - 1; i >= 0; i--) {
+            HistoryStore.Entry e = entries.get(i);
+            String who = e.outgoing ? "you -> " + e.peer : colorize(e.peer) + e.peer + RESET + " -> you";
+            print("[" + fmt.format(new Date(e.ts)) + "] " + who + ": " + e.text);
+        }
+    }
+
     // deterministic color per display name (simple)
     private static String colorize(String displayName) {
         int hash = Math.abs(displayName.toLowerCase().hashCode());
@@ -4,11 +4,40 @@ import java.io.*;
 import java.net.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class ChatServer {
 
-    // online map: normalized -> PrintWriter
-    private static final ConcurrentMap<String, PrintWriter> clients = new ConcurrentHashMap<>();
+    // online map: normalized -> (deviceId -> handler). Each handler owns its PrintWriter and delivery window.
+    private static final ConcurrentMap<String, ConcurrentMap<String, ClientHandler>> clients = new ConcurrentHashMap<>();
+
+    // pending device links: code -> issuing user
+    private static final ConcurrentMap<String, LinkCode> linkCodes = new ConcurrentHashMap<>();
+    private static final SecureRandom RNG = new SecureRandom();
+
+    // admission control: open sockets, and commands executing server-wide
+    private static final AtomicInteger connections = new AtomicInteger();
+    private static final Semaphore commandSlots = new Semaphore(Config.MAX_CONCURRENT_COMMANDS);
+    // one thread writes BUSY replies to refused sockets; beyond its queue they are just closed
+    private static final ExecutorService refuser = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(Config.REFUSE_QUEUE), r -> {
+                Thread t = new Thread(r, "Refuser");
+                t.setDaemon(true);
+                return t;
+            });
+
+    // writes the reaper's PINGs, so a full send buffer never blocks the reaper thread itself
+    private static final ExecutorService pinger = Executors.newFixedThreadPool(Config.PING_THREADS, r -> {
+        Thread t = new Thread(r, "Pinger");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // closes sessions that stopped answering (NAT timeouts, sleeping laptops, stuck writes)
+    private static final SessionReaper reaper = new SessionReaper(Config.REAPER_TICK_MS, Config.REAPER_WHEEL_SLOTS);
 
     private static volatile boolean running = true;
     private static ServerSocket serverSocket = null;
@@ -17,7 +46,7 @@ public class ChatServer {
         try {
             System.out.println("Starting server, initializing DB...");
             DB.init("chat.db");
-            System.out.println("DB ready. Listening on port " + Config.PORT);
+            System.out.println("DB ready. Listening on port " + Config.PORT + (Config.TLS_ENABLED ? " (TLS)" : ""));
 
             // Add JVM shutdown hook to ensure cleanup on Ctrl+C / kill
             Runtime.getRuntime().addShutdownHook(new Thread(() -> {
@@ -30,10 +59,18 @@ public class ChatServer {
             adminThread.setDaemon(true);
             adminThread.start();
 
-            serverSocket = new ServerSocket(Config.PORT);
+            reaper.start();
+
+            serverSocket = Tls.serverSocket(Config.PORT, Config.ACCEPT_BACKLOG);
             while (running) {
                 try {
                     Socket s = serverSocket.accept();
+                    // shed load before spending a thread on the connection
+                    if (connections.incrementAndGet() > Config.MAX_CONNECTIONS) {
+                        connections.decrementAndGet();
+                        refuse(s);
+                        continue;
+                    }
                     new Thread(new ClientHandler(s)).start();
                 } catch (SocketException se) {
                     // Occurs when serverSocket is closed during shutdown
@@ -81,10 +118,78 @@ public class ChatServer {
         }
     }
 
+    private static class LinkCode {
+        final String normalized;
+        final long expiresAt;
+        LinkCode(String normalized, long expiresAt) {
+            this.normalized = normalized;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static String newLinkCode() {
+        final String alphabet = "ABCDEFGHJKLMNPQRSTUVWXYZ23456789";
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 10; i++) sb.append(alphabet.charAt(RNG.nextInt(alphabet.length())));
+        return sb.toString();
+    }
+
+    // Issue a code for `normalized`. Expired codes are swept first, and a user holding
+    // MAX_LINK_CODES live codes loses the oldest, so the map stays bounded by online users.
+    private static synchronized String issueLinkCode(String normalized) {
+        long now = System.currentTimeMillis();
+        linkCodes.values().removeIf(e -> e.expiresAt < now);
+        List<Map.Entry<String, LinkCode>> own = new ArrayList<>();
+        for (Map.Entry<String, LinkCode> e : linkCodes.entrySet()) {
+            if (e.getValue().normalized.equals(normalized)) own.add(e);
+        }
+        own.sort(Comparator.comparingLong(e -> e.getValue().expiresAt));
+        for (int i = 0; i <= own.size() - Config.MAX_LINK_CODES; i++) linkCodes.remove(own.get(i).getKey());
+        String code = newLinkCode();
+        linkCodes.put(code, new LinkCode(normalized, now + Config.LINK_CODE_TTL_MS));
+        return code;
+    }
+
+    // codes are single use; expired ones are swept whenever one is issued or redeemed
+    private static synchronized boolean consumeLinkCode(String code, String normalized) {
+        long now = System.currentTimeMillis();
+        LinkCode entry = linkCodes.remove(code.toUpperCase());
+        linkCodes.values().removeIf(e -> e.expiresAt < now);
+        return entry != null && entry.normalized.equals(normalized) && entry.expiresAt >= now;
+    }
+
+    // Answers ERROR:BUSY and closes gracefully: FIN after the reply, then drain whatever the
+    // client already sent (its REGISTER), because closing with unread input sends an RST that
+    // can discard the reply. Runs off the accept thread; if even that queue is full, just drop.
+    private static void refuse(Socket s) {
+        // writing over TLS would run a full handshake for a connection we are shedding; just drop it
+        if (s instanceof javax.net.ssl.SSLSocket) {
+            try { s.close(); } catch (IOException ignored) {}
+            return;
+        }
+        try {
+            refuser.execute(() -> {
+                try (Socket sock = s) {
+                    sock.setSoTimeout((int) Config.REFUSE_LINGER_MS);
+                    PrintWriter pw = new PrintWriter(sock.getOutputStream(), true);
+                    pw.println("ERROR:BUSY");
+                    sock.shutdownOutput();
+                    InputStream in = sock.getInputStream();
+                    byte[] buf = new byte[512];
+                    long deadline = System.currentTimeMillis() + Config.REFUSE_LINGER_MS;
+                    while (System.currentTimeMillis() < deadline && in.read(buf) != -1) { }
+                } catch (IOException ignored) {}
+            });
+        } catch (RejectedExecutionException ree) {
+            try { s.close(); } catch (IOException ignored) {}
+        }
+    }
+
     public static synchronized void shutdown() {
         if (!running) return;
         running = false;
         System.out.println("Shutting down server...");
+        reaper.stop();
 
         // Close server socket so accept() will stop
         try {
@@ -94,15 +199,17 @@ public class ChatServer {
         } catch (IOException ignored) {}
 
         // Notify and close all client writers
-        for (Map.Entry<String, PrintWriter> e : clients.entrySet()) {
-            try {
-                PrintWriter pw = e.getValue();
-                if (pw != null) {
-                    pw.println("SERVER: Server shutting down...");
-                    pw.flush();
-                    pw.close();
-                }
-            } catch (Exception ignored) {}
+        for (ConcurrentMap<String, ClientHandler> devices : clients.values()) {
+            for (ClientHandler h : devices.values()) {
+                try {
+                    PrintWriter pw = h.out;
+                    if (pw != null) {
+                        pw.println("SERVER: Server shutting down...");
+                        pw.flush();
+                        pw.close();
+                    }
+                } catch (Exception ignored) {}
+            }
         }
         clients.clear();
 
@@ -116,11 +223,46 @@ public class ChatServer {
         System.out.println("Server shutdown complete.");
     }
 
-    private static class ClientHandler implements Runnable {
+    private static class ClientHandler implements Runnable, SessionReaper.Session {
         private final Socket socket;
         private String normalized = null;
+        private String deviceId = null;
         private PrintWriter out;
 
+        // liveness, read by the reaper thread
+        private volatile long lastReadAt = System.currentTimeMillis();
+        private volatile long writeStartedAt = 0;
+        private volatile boolean registered = false;
+        private volatile boolean closed = false;
+        private final ReentrantLock writeLock = new ReentrantLock();
+        private final AtomicBoolean pingQueued = new AtomicBoolean(false);
+
+        // Deliveries triggered by other users' MSGs run here, on this session's own thread, so a
+        // sender never blocks on this socket or this monitor. The thread exits when idle.
+        private final ThreadPoolExecutor deliverer = new ThreadPoolExecutor(0, 1,
+                Config.DELIVER_KEEPALIVE_MS, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>(), r -> {
+                    Thread t = new Thread(r, "Deliver");
+                    t.setDaemon(true);
+                    return t;
+                });
+        private final AtomicBoolean pumpQueued = new AtomicBoolean(false);
+
+        // delivery window: ids forwarded but not yet ACKed by the client
+        private final TreeSet<Integer> inFlight = new TreeSet<>();
+        // highest id ever forwarded on this connection; the next page starts after it
+        private int lastSentId = 0;
+
+        // per-connection rate limits: one bucket for all commands, one per command type
+        private final TokenBucket connBucket = new TokenBucket(Config.CONN_BURST, Config.CONN_RATE);
+        private final Map<String, TokenBucket> cmdBuckets = new HashMap<>();
+        {
+            cmdBuckets.put("MSG", new TokenBucket(Config.MSG_BURST, Config.MSG_RATE));
+            cmdBuckets.put("GETPUB", new TokenBucket(Config.GETPUB_BURST, Config.GETPUB_RATE));
+            cmdBuckets.put("LIST", new TokenBucket(Config.LIST_BURST, Config.LIST_RATE));
+            cmdBuckets.put("HISTORY", new TokenBucket(Config.HISTORY_BURST, Config.HISTORY_RATE));
+            cmdBuckets.put("LINK", new TokenBucket(Config.LINK_BURST, Config.LINK_RATE));
+        }
+
         ClientHandler(Socket socket) {
             this.socket = socket;
         }
@@ -133,108 +275,127 @@ public class ChatServer {
                 PrintWriter outLocal = new PrintWriter(s.getOutputStream(), true)
             ) {
                 this.out = outLocal;
+                s.setKeepAlive(true);
+                s.setTcpNoDelay(true);   // small interactive lines; don't wait on delayed ACKs
+                reaper.add(this);
 
-                // Expect: REGISTER:<displayName>:<pubKeyBase64>
+                // Expect: REGISTER:<displayName>:<devicePubKeyBase64>[:<linkCode>]
                 String first = in.readLine();
+                lastReadAt = System.currentTimeMillis();
                 if (first == null || !first.startsWith("REGISTER:")) {
-                    outLocal.println("ERROR:Expected REGISTER:<username>:<pubkeyBase64>");
+                    send("ERROR:Expected REGISTER:<username>:<pubkeyBase64>");
                     return;
                 }
-                String[] reg = first.split(":", 3);
+                String[] reg = first.split(":", 4);
                 if (reg.length < 3) {
-                    outLocal.println("ERROR:Bad REGISTER format");
+                    send("ERROR:Bad REGISTER format");
                     return;
                 }
                 String display = reg[1].trim();
                 String pubKeyB64 = reg[2].trim();
+                String linkCode = reg.length == 4 ? reg[3].trim() : null;
                 if (display.isEmpty() || pubKeyB64.isEmpty()) {
-                    outLocal.println("ERROR:Empty username or public key");
+                    send("ERROR:Empty username or public key");
+                    return;
+                }
+                String norm = display.toLowerCase();
+                String devId;
+                java.security.PublicKey pubKey;
+                try {
+                    devId = Encryptor.deviceId(pubKeyB64);
+                    pubKey = Encryptor.publicKeyFromBase64(pubKeyB64);
+                } catch (Exception e) {
+                    send("ERROR:Bad public key");
                     return;
                 }
-                normalized = display.toLowerCase();
 
-                // If user exists, ensure pubkey matches; else create user
-                if (DB.userExists(normalized)) {
-                    String storedPub = DB.getPublicKey(normalized);
-                    if (!storedPub.equals(pubKeyB64)) {
-                        outLocal.println("ERROR:USERNAME_TAKEN");
-                        return;
+                // Proof of possession: public keys are handed out by GETPUB, so presenting one proves
+                // nothing. CHALLENGE:<nonce> must come back as PROOF:<signature> made with the private key.
+                byte[] nonce = new byte[Config.CHALLENGE_BYTES];
+                RNG.nextBytes(nonce);
+                String nonceB64 = Encryptor.toBase64(nonce);
+                send("CHALLENGE:" + nonceB64);
+                String proof = in.readLine();
+                lastReadAt = System.currentTimeMillis();
+                boolean proven = false;
+                if (proof != null && proof.startsWith("PROOF:")) {
+                    try {
+                        proven = Encryptor.verify(Encryptor.registerProofData(norm, nonceB64),
+                                Encryptor.fromBase64(proof.substring("PROOF:".length())), pubKey);
+                    } catch (Exception e) {
+                        proven = false;
                     }
-                } else {
-                    // create new user entry with this pubkey
-                    DB.createUser(normalized, display, pubKeyB64);
                 }
-
-                // put online (reject if someone already online with same normalized)
-                if (clients.putIfAbsent(normalized, outLocal) != null) {
-                    outLocal.println("ERROR:USERNAME_TAKEN");
+                if (!proven) {
+                    send("ERROR:BAD_PROOF");
                     return;
                 }
 
-                System.out.println("User registered/online: " + display + " from " + s.getRemoteSocketAddress());
-                outLocal.println("REGISTERED");
-
-                // deliver queued messages
-                List<DB.MessageRow> pending = DB.getUndeliveredMessages(normalized);
-                if (!pending.isEmpty()) {
-                    for (DB.MessageRow m : pending) {
-                        String forward = "MSGFROM:" + m.sender + ":" + m.encKeyB64 + ":" + m.ivB64 + ":" + m.cipherB64;
-                        outLocal.println(forward);
-                        DB.markDelivered(m.id);
+                // New user: this key is their first device. Known user: the key must be one of
+                // their devices, or come with a link code issued to one of them.
+                if (!DB.userExists(norm)) {
+                    DB.createUser(norm, display, pubKeyB64);
+                    DB.addDevice(norm, devId, pubKeyB64);
+                } else if (!DB.deviceExists(norm, devId)) {
+                    if (linkCode == null || !consumeLinkCode(linkCode, norm)) {
+                        send("ERROR:USERNAME_TAKEN");
+                        return;
                     }
+                    DB.addDevice(norm, devId, pubKeyB64);
+                    System.out.println("Linked new device " + devId + " for " + norm);
                 }
 
+                // Put online. The device has just proven its key, so an existing session for it is
+                // one the client already gave up on (read timeout, network change) that the reaper
+                // hasn't closed yet: replace it instead of making the reconnect wait for the reaper.
+                normalized = norm;
+                deviceId = devId;
+                ClientHandler[] stale = {null};
+                clients.compute(norm, (k, devices) -> {
+                    if (devices == null) devices = new ConcurrentHashMap<>();
+                    stale[0] = devices.put(devId, this);
+                    return devices;
+                });
+                if (stale[0] != null) stale[0].kill("replaced by a new session for the same device");
+
+                System.out.println("User registered/online: " + display + " (device " + deviceId + ") from " + s.getRemoteSocketAddress());
+                send("REGISTERED");
+                registered = true;
+
+                // deliver queued messages (first window; the rest follow as ACKs come in)
+                pump();
+
                 String line;
                 while (running && (line = in.readLine()) != null) {
-                    if (line.equalsIgnoreCase("LIST")) {
-                        List<String> online = new ArrayList<>();
-                        for (String u : clients.keySet()) {
-                            String disp = DB.getDisplayName(u);
-                            online.add(disp);
-                        }
-                        Collections.sort(online, String.CASE_INSENSITIVE_ORDER);
-                        outLocal.println("LIST:" + String.join(",", online));
+                    lastReadAt = System.currentTimeMillis();
+                    if (line.equals("PONG")) continue;
+
+                    // ACKs are never limited: they free window slots and shrink work. They are never
+                    // answered either, so they can't be used to make the server write for free.
+                    if (line.startsWith("ACK:")) {
+                        onAck(line.substring("ACK:".length()));
                         continue;
                     }
 
-                    if (line.startsWith("GETPUB:")) {
-                        String[] p = line.split(":", 2);
-                        if (p.length < 2) { outLocal.println("ERROR:GETPUB bad format"); continue; }
-                        String targetNorm = p[1].trim().toLowerCase();
-                        String keyB64 = DB.getPublicKey(targetNorm);
-                        String targetDisplay = DB.getDisplayName(targetNorm);
-                        if (keyB64 == null) {
-                            outLocal.println("ERROR:User not found: " + targetNorm);
-                        } else {
-                            outLocal.println("PUB:" + targetDisplay + ":" + keyB64);
-                        }
+                    // Tokens are only spent once the command is admitted: a RATE_LIMITED or BUSY answer
+                    // costs nothing, so a retry after BUSY isn't turned into RATE_LIMITED.
+                    String cmd = commandOf(line);
+                    TokenBucket bucket = cmdBuckets.get(cmd);
+                    if (!connBucket.hasToken() || (bucket != null && !bucket.hasToken())) {
+                        send("ERROR:RATE_LIMITED" + (bucket != null ? ":" + cmd : "") + msgIdSuffix(cmd, line));
                         continue;
                     }
-
-                    if (line.startsWith("MSG:")) {
-                        String[] p = line.split(":", 5);
-                        if (p.length < 5) { outLocal.println("ERROR:MSG bad format"); continue; }
-                        String targetNorm = p[1].trim().toLowerCase();
-                        String encKeyB64  = p[2];
-                        String ivB64      = p[3];
-                        String cipherB64  = p[4];
-                        String senderDisplay = DB.getDisplayName(normalized);
-
-                        // store message (delivered=false initially). If target online, forward & mark delivered.
-                        int msgId = DB.storeMessage(targetNorm, senderDisplay, encKeyB64, ivB64, cipherB64, false);
-                        PrintWriter targetOut = clients.get(targetNorm);
-                        if (targetOut != null) {
-                            // forward now
-                            targetOut.println("MSGFROM:" + senderDisplay + ":" + encKeyB64 + ":" + ivB64 + ":" + cipherB64);
-                            DB.markDelivered(msgId);
-                            outLocal.println("SENT:" + targetNorm);
-                        } else {
-                            outLocal.println("SAVED:" + targetNorm);
-                        }
+                    if (!commandSlots.tryAcquire(Config.ADMISSION_WAIT_MS, TimeUnit.MILLISECONDS)) {
+                        send("ERROR:BUSY" + (cmd.equals("MSG") ? ":MSG" : "") + msgIdSuffix(cmd, line));
                         continue;
                     }
-
-                    outLocal.println("ERROR:Unknown command");
+                    connBucket.tryAcquire();
+                    if (bucket != null) bucket.tryAcquire();
+                    try {
+                        handleCommand(line);
+                    } finally {
+                        commandSlots.release();
+                    }
                 }
 
             } catch (IOException ioe) {
@@ -243,12 +404,302 @@ public class ChatServer {
                 System.out.println("Unexpected error for user " + normalized + ": " + ex.getMessage());
                 ex.printStackTrace();
             } finally {
+                closed = true;
+                deliverer.shutdown();
                 if (normalized != null) {
-                    clients.remove(normalized);
-                    System.out.println("User disconnected: " + normalized);
+                    // anything still in flight stays delivered=0 and is redelivered on reconnect
+                    clients.computeIfPresent(normalized, (k, devices) -> {
+                        devices.remove(deviceId, this);
+                        return devices.isEmpty() ? null : devices;
+                    });
+                    synchronized (this) { inFlight.clear(); }
+                    System.out.println("User disconnected: " + normalized + " (device " + deviceId + ")");
                 }
+                connections.decrementAndGet();
                 try { socket.close(); } catch (IOException ignored) {}
             }
         }
+
+        // All writes go through here so the reaper can spot one stuck on a dead peer.
+        private void send(String line) {
+            writeLock.lock();
+            try {
+                write(line);
+            } finally {
+                writeLock.unlock();
+            }
+        }
+
+        private void write(String line) {
+            writeStartedAt = System.currentTimeMillis();
+            reaper.watchWrite(this);
+            try {
+                out.println(line);
+            } finally {
+                writeStartedAt = 0;
+            }
+        }
+
+        @Override public long lastReadAt() { return lastReadAt; }
+        @Override public long writeStartedAt() { return writeStartedAt; }
+        @Override public boolean isRegistered() { return registered; }
+        @Override public boolean isClosed() { return closed; }
+
+        // Called from the reaper thread, so it only queues the PING. The pinger skips it when
+        // another write holds the lock: that write is either progressing (the peer is alive
+        // enough) or stuck, and then the write timeout reaps the session anyway.
+        @Override
+        public void ping() {
+            if (!pingQueued.compareAndSet(false, true)) return;
+            pinger.execute(() -> {
+                pingQueued.set(false);
+                if (closed || !writeLock.tryLock()) return;
+                try {
+                    write("PING");
+                } finally {
+                    writeLock.unlock();
+                }
+            });
+        }
+
+        // Called from the reaper thread. Closing the socket unblocks readLine()/println()
+        // and the handler thread runs its normal cleanup. Linger 0 so a TLS close doesn't wait
+        // to queue close_notify behind a write that is stuck on the same socket.
+        @Override
+        public void kill(String reason) {
+            System.out.println("Reaping session " + (normalized != null ? normalized : socket.getRemoteSocketAddress()) + ": " + reason);
+            closed = true;
+            try { socket.setSoLinger(true, 0); } catch (IOException ignored) {}
+            try { socket.close(); } catch (IOException ignored) {}
+        }
+
+        private static String pubLine(String norm, Map<String, String> devices) throws Exception {
+            // PUB:<display>:<deviceId>.<pubKey>,...
+            StringBuilder sb = new StringBuilder("PUB:").append(DB.getDisplayName(norm)).append(':');
+            boolean firstDev = true;
+            for (Map.Entry<String, String> d : devices.entrySet()) {
+                if (!firstDev) sb.append(',');
+                sb.append(d.getKey()).append('.').append(d.getValue());
+                firstDev = false;
+            }
+            return sb.toString();
+        }
+
+        // Refusals of a MSG name its clientMsgId (":<id>") so the client resends exactly that one.
+        private static String msgIdSuffix(String cmd, String line) {
+            if (!cmd.equals("MSG")) return "";
+            String[] p = line.split(":", 4);
+            return p.length >= 3 ? ":" + p[2].trim() : "";
+        }
+
+        private static String commandOf(String line) {
+            if (line.equalsIgnoreCase("LIST")) return "LIST";
+            if (line.equals("LINK")) return "LINK";
+            int idx = line.indexOf(':');
+            return idx == -1 ? "UNKNOWN" : line.substring(0, idx);
+        }
+
+        private void handleCommand(String line) throws Exception {
+            if (line.equalsIgnoreCase("LIST")) {
+                List<String> online = new ArrayList<>();
+                for (String u : clients.keySet()) {
+                    String disp = DB.getDisplayName(u);
+                    online.add(disp);
+                }
+                Collections.sort(online, String.CASE_INSENSITIVE_ORDER);
+                send("LIST:" + String.join(",", online));
+                return;
+            }
+
+            if (line.equals("LINK")) {
+                // one-time code that lets a new install register as another device of this user
+                send("LINKCODE:" + issueLinkCode(normalized));
+                return;
+            }
+
+            if (line.startsWith("GETPUB:")) {
+                String[] p = line.split(":", 2);
+                if (p.length < 2) { send("ERROR:GETPUB bad format"); return; }
+                String targetNorm = p[1].trim().toLowerCase();
+                Map<String, String> devices = DB.getDeviceKeys(targetNorm);
+                if (devices.isEmpty()) {
+                    send("ERROR:User not found: " + targetNorm);
+                } else {
+                    send(pubLine(targetNorm, devices));
+                }
+                return;
+            }
+
+            if (line.startsWith("MSG:")) {
+                // MSG:<target>:<clientMsgId>:<wraps>:<iv>:<cipher>
+                // wraps: <deviceId>.<encKey>,...  one per recipient device; '@'-prefixed ones are
+                // the sender's own devices (kept for HISTORY, never delivered)
+                String[] p = line.split(":", 6);
+                if (p.length < 6) { send("ERROR:MSG bad format"); return; }
+                String targetNorm = p[1].trim().toLowerCase();
+                String clientMsgId = p[2].trim();
+                String ivB64      = p[4];
+                String cipherB64  = p[5];
+
+                // REJECTED:<target>:<clientMsgId>:<reason> tells the client to stop retrying this message
+                Map<String, String> targetDevices = DB.getDeviceKeys(targetNorm);
+                if (targetDevices.isEmpty()) { send("REJECTED:" + targetNorm + ":" + clientMsgId + ":User not found"); return; }
+                // a note to self is wrapped for the sender's devices as recipients; '@' copies would
+                // be second key rows for the same devices
+                if (targetNorm.equals(normalized) && (p[3].startsWith("@") || p[3].contains(",@"))) {
+                    send("REJECTED:" + targetNorm + ":" + clientMsgId + ":Self wraps on a note to self");
+                    return;
+                }
+                Map<String, String> ownDevices = DB.getDeviceKeys(normalized);
+                Map<String, String> recipientWraps = new LinkedHashMap<>();
+                Map<String, String> selfWraps = new LinkedHashMap<>();
+                for (String w : p[3].split(",")) {
+                    boolean self = w.startsWith("@");
+                    int dot = w.indexOf('.');
+                    if (dot <= (self ? 1 : 0)) continue;
+                    String dev = w.substring(self ? 1 : 0, dot);
+                    if (self ? ownDevices.containsKey(dev) : targetDevices.containsKey(dev)) {
+                        (self ? selfWraps : recipientWraps).put(dev, w.substring(dot + 1));
+                    }
+                }
+                if (recipientWraps.isEmpty()) {
+                    send("REJECTED:" + targetNorm + ":" + clientMsgId + ":STALE_DEVICES");
+                    send(pubLine(targetNorm, targetDevices));
+                    return;
+                }
+
+                // One ciphertext row, one small key row per device. Each device's copy only becomes
+                // delivered once that device ACKs it. Resends with a known clientMsgId are no-ops.
+                String senderDisplay = DB.getDisplayName(normalized);
+                DB.storeMessage(targetNorm, normalized, senderDisplay, clientMsgId, ivB64, cipherB64, recipientWraps, selfWraps);
+
+                // every online device of the recipient delivers it on its own thread
+                boolean online = false;
+                ConcurrentMap<String, ClientHandler> targets = clients.get(targetNorm);
+                if (targets != null) {
+                    for (ClientHandler h : targets.values()) {
+                        if (!recipientWraps.containsKey(h.deviceId)) continue;
+                        h.requestPump();
+                        online = true;
+                    }
+                }
+                send((online ? "SENT:" : "SAVED:") + targetNorm + ":" + clientMsgId);
+                // the sender's key cache missed some devices: refresh it for next time
+                if (recipientWraps.size() < targetDevices.size()) send(pubLine(targetNorm, targetDevices));
+                return;
+            }
+
+            if (line.startsWith("HISTORY:")) {
+                // HISTORY:<peer>:<beforeId>:<limit>[:<sinceTs>]   (beforeId 0 = newest)
+                String[] p = line.split(":", 5);
+                if (p.length < 4) { send("ERROR:HISTORY bad format"); return; }
+                String peerNorm = p[1].trim().toLowerCase();
+                int beforeId, limit;
+                long sinceTs = 0;
+                try {
+                    beforeId = Integer.parseInt(p[2].trim());
+                    limit = Integer.parseInt(p[3].trim());
+                    if (p.length == 5) sinceTs = Long.parseLong(p[4].trim());
+                } catch (NumberFormatException nfe) {
+                    send("ERROR:HISTORY bad format");
+                    return;
+                }
+                if (beforeId <= 0) beforeId = Integer.MAX_VALUE;
+                limit = Math.max(1, Math.min(limit, Config.HISTORY_MAX_PAGE));
+
+                List<DB.MessageRow> rows = DB.getConversationPage(normalized, deviceId, peerNorm, beforeId, sinceTs, limit);
+                // whole page in one line: HISTORY:<peer>:<nextBeforeId>:<id>,<ts>,<i|o>,<encKey>,<iv>,<cipher>;...
+                // nextBeforeId is 0 when there is nothing older; encKey is this device's wrap, empty if none
+                int next = rows.size() == limit ? rows.get(rows.size() - 1).id : 0;
+                StringBuilder sb = new StringBuilder("HISTORY:");
+                sb.append(DB.getDisplayName(peerNorm)).append(':').append(next).append(':');
+                for (int i = 0; i < rows.size(); i++) {
+                    DB.MessageRow m = rows.get(i);
+                    if (i > 0) sb.append(';');
+                    sb.append(m.id).append(',').append(m.ts).append(',')
+                      .append(m.recipient.equals(normalized) ? 'i' : 'o').append(',')
+                      .append(m.encKeyB64 != null ? m.encKeyB64 : "").append(',')
+                      .append(m.ivB64).append(',').append(m.cipherB64);
+                }
+                send(sb.toString());
+                return;
+            }
+
+            send("ERROR:Unknown command");
+        }
+
+        // Called from other sessions' threads. Only queues the pump; requests made while one is
+        // already queued are covered by it, since it reads everything undelivered when it runs.
+        void requestPump() {
+            if (closed || !pumpQueued.compareAndSet(false, true)) return;
+            try {
+                deliverer.execute(() -> {
+                    pumpQueued.set(false);
+                    try {
+                        pump();
+                    } catch (Exception e) {
+                        // the message stays undelivered and goes out with the next pump or reconnect
+                        System.out.println("Delivery to " + normalized + " (device " + deviceId + ") failed: " + e.getMessage());
+                    }
+                });
+            } catch (RejectedExecutionException closing) {
+                pumpQueued.set(false);
+            }
+        }
+
+        // Forward undelivered messages while the window has room. Called on login,
+        // when a new message for this user is stored, and whenever ACKs free slots.
+        synchronized void pump() throws Exception {
+            if (closed) return;
+            int room = Config.DELIVERY_WINDOW - inFlight.size();
+            if (room <= 0) return;
+            for (DB.MessageRow m : DB.getUndeliveredMessages(normalized, deviceId, lastSentId, room)) {
+                send("MSGFROM:" + m.sender + ":" + m.id + ":" + m.encKeyB64 + ":" + m.ivB64 + ":" + m.cipherB64);
+                inFlight.add(m.id);
+                lastSentId = m.id;
+            }
+        }
+
+        // ACK:<lo>-<hi>,<id>,... -- cumulative/range acknowledgement from the client.
+        // Only ids actually in flight count; they are persisted with one batched UPDATE.
+        // The whole spec is parsed first so a malformed part leaves the window untouched.
+        synchronized void onAck(String spec) throws Exception {
+            List<int[]> parsed = new ArrayList<>();
+            for (String part : spec.split(",")) {
+                part = part.trim();
+                if (part.isEmpty()) continue;
+                int lo, hi;
+                try {
+                    int dash = part.indexOf('-');
+                    lo = Integer.parseInt(dash < 0 ? part : part.substring(0, dash));
+                    hi = dash < 0 ? lo : Integer.parseInt(part.substring(dash + 1));
+                } catch (NumberFormatException nfe) {
+                    return;   // malformed: ignored as a whole, no reply
+                }
+                if (hi >= lo) parsed.add(new int[]{lo, hi});
+            }
+            List<Integer> acked = new ArrayList<>();
+            for (int[] r : parsed) {
+                NavigableSet<Integer> hit = inFlight.subSet(r[0], true, r[1], true);
+                acked.addAll(hit);
+                hit.clear();
+            }
+            if (acked.isEmpty()) return;
+
+            Collections.sort(acked);
+            List<int[]> ranges = new ArrayList<>();
+            int start = acked.get(0), prev = start;
+            for (int i = 1; i < acked.size(); i++) {
+                int id = acked.get(i);
+                if (id != prev + 1) {
+                    ranges.add(new int[]{start, prev});
+                    start = id;
+                }
+                prev = id;
+            }
+            ranges.add(new int[]{start, prev});
+            DB.markDeliveredRanges(normalized, deviceId, ranges);
+            pump();
+        }
     }
 }
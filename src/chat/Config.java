@@ -4,4 +4,70 @@ public class Config {
     public static final int PORT = 12345;
     public static final int RSA_KEY_SIZE = 2048;
     public static final int AES_KEY_SIZE = 128;
+
+    // delivery acknowledgements
+    public static final int DELIVERY_WINDOW = 64;     // unacked messages in flight per connection
+    public static final int ACK_BATCH_SIZE = 32;      // client flushes ACKs once this many are pending
+    public static final long ACK_FLUSH_MS = 50;       // ...or after this delay, whichever comes first
+
+    // rate limiting / admission control (server)
+    public static final int MAX_CONNECTIONS = 500;            // refuse new sockets beyond this
+    public static final int ACCEPT_BACKLOG = 128;             // kernel accept queue length
+    public static final int MAX_CONCURRENT_COMMANDS = 32;     // commands executing at once, server-wide
+    public static final long ADMISSION_WAIT_MS = 200;         // wait for a slot before answering BUSY
+    public static final long REFUSE_LINGER_MS = 500;          // drain a refused socket this long before closing
+    public static final int REFUSE_QUEUE = 64;                // refused sockets waiting for their BUSY reply
+    public static final double CONN_BURST = 60, CONN_RATE = 30;     // all commands, per connection
+    public static final double MSG_BURST = 30, MSG_RATE = 10;       // MSG per connection
+    public static final double GETPUB_BURST = 20, GETPUB_RATE = 5;  // GETPUB per connection
+    public static final double LIST_BURST = 5, LIST_RATE = 1;       // LIST per connection
+    public static final double HISTORY_BURST = 10, HISTORY_RATE = 2; // HISTORY pages per connection
+    public static final double LINK_BURST = 3, LINK_RATE = 0.1;     // LINK codes per connection
+
+    // keepalive / reaping
+    public static final long PING_INTERVAL_MS = 30_000;   // server PINGs a session silent this long
+    public static final long IDLE_TIMEOUT_MS = 90_000;    // no line at all (not even PONG) -> closed
+    public static final long WRITE_TIMEOUT_MS = 10_000;   // a single write blocked this long -> closed
+    public static final long REAPER_TICK_MS = 1_000;
+    public static final int REAPER_WHEEL_SLOTS = 128;
+    public static final int PING_THREADS = 2;             // threads writing PINGs for the reaper
+    public static final long DELIVER_KEEPALIVE_MS = 5_000; // idle time before a session's delivery thread exits
+
+    // local history (client)
+    public static final int HISTORY_BATCH = 256;          // appends buffered before a forced flush
+    public static final long HISTORY_FLUSH_MS = 200;      // background flush interval
+    public static final int HISTORY_RECENT = 2000;        // newest entries kept decrypted in memory
+    public static final int HISTORY_PAGE = 20;            // default results for /search and /history
+
+    // server-side history sync
+    public static final int HISTORY_MAX_PAGE = 200;       // rows per HISTORY page, server-enforced
+
+    // terminal rendering (client)
+    public static final long UI_FRAME_MS = 33;            // at most ~30 redraws per second
+    public static final int UI_MAX_FRAME_LINES = 200;     // lines drawn per frame; the rest wait for the next
+    public static final int UI_MAX_PENDING = 5_000;       // queued lines before the oldest are shed
+    public static final int UI_SCROLLBACK = 20_000;       // lines kept for /scroll; > UI_MAX_PENDING, so shed lines stay here
+
+    // transport (see Tls); switched on with -Dchat.tls=true
+    public static final String HOST = System.getProperty("chat.host", "localhost");
+    public static final boolean TLS_ENABLED = Boolean.getBoolean("chat.tls");
+    public static final String TLS_KEYSTORE = System.getProperty("chat.tls.keystore", "server.p12");   // server
+    public static final String TLS_PASSWORD = System.getenv("CHAT_TLS_PASSWORD");                    // server
+    public static final String TLS_CERT = System.getProperty("chat.tls.cert", "server.crt");          // client pin
+    public static final int TLS_SESSION_CACHE_SIZE = 10_000;
+    public static final int TLS_SESSION_TIMEOUT_S = 24 * 60 * 60;
+
+    // devices
+    public static final int CHALLENGE_BYTES = 32;              // REGISTER nonce the device must sign
+    public static final long LINK_CODE_TTL_MS = 5 * 60_000;   // how long a LINK code stays valid
+    public static final int MAX_LINK_CODES = 3;                // live codes per user; issuing more drops the oldest
+
+    // reconnect / outbox (client)
+    public static final long RECONNECT_BASE_MS = 500;       // first backoff step
+    public static final long RECONNECT_MAX_MS = 30_000;     // backoff ceiling
+    public static final long OUTBOX_RETRY_MS = 1_000;       // resend delay after a MSG was refused (RATE_LIMITED/BUSY)
+    public static final int OUTBOX_WINDOW = 20;             // outbox lines awaiting SENT/SAVED at once
+    public static final double OUTBOX_BURST = 20, OUTBOX_RATE = 8;  // client-side pacing, under MSG_BURST/MSG_RATE
+    public static final int OUTBOX_COMPACT_RECORDS = 1_000; // dead outbox log records before it is rewritten
+    public static final int SEEN_IDS = 10_000;              // recent server ids remembered to drop redeliveries
 }
@@ -24,9 +24,111 @@ public class DB {
                     "cipherB64 TEXT," +
                     "timestamp INTEGER," +
                     "delivered INTEGER DEFAULT 0)");
+            addColumnIfMissing(st, "messages", "clientMsgId", "TEXT");
+            addColumnIfMissing(st, "messages", "senderNorm", "TEXT");
+            // older rows only kept the display name; usernames are its lower-case form
+            backfillSenderNorm(st);
+            // idempotent MSG: a resent (senderNorm, clientMsgId) maps to the row already stored
+            st.execute("CREATE UNIQUE INDEX IF NOT EXISTS idx_messages_dedupe ON messages(senderNorm, clientMsgId)");
+            // history pages: one keyset range scan per conversation direction
+            st.execute("CREATE INDEX IF NOT EXISTS idx_messages_conv ON messages(recipient, senderNorm, id)");
+
+            // Devices: one RSA key per install. A message row holds the ciphertext once;
+            // message_keys holds the content key wrapped for each device, and per-device delivery state.
+            // Created and migrated in one transaction: a crash part way leaves no devices table,
+            // so the migration simply runs again on the next start.
+            boolean hadDevices = tableExists(st, "devices");
+            conn.setAutoCommit(false);
+            try {
+                createDeviceTables(st);
+                if (!hadDevices) migrateToDevices(st);
+                conn.commit();
+            } catch (SQLException e) {
+                conn.rollback();
+                throw e;
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    private static void createDeviceTables(Statement st) throws SQLException {
+        st.execute("CREATE TABLE IF NOT EXISTS devices (" +
+                "username TEXT," +
+                "deviceId TEXT," +
+                "pubKeyB64 TEXT," +
+                "created INTEGER," +
+                "PRIMARY KEY(username, deviceId))");
+        st.execute("CREATE TABLE IF NOT EXISTS message_keys (" +
+                "messageId INTEGER," +
+                "recipient TEXT," +
+                "deviceId TEXT," +
+                "encKeyB64 TEXT," +
+                "delivered INTEGER DEFAULT 0," +
+                "PRIMARY KEY(recipient, deviceId, messageId))");
+        st.execute("CREATE INDEX IF NOT EXISTS idx_message_keys_pending ON message_keys(recipient, deviceId, delivered, messageId)");
+    }
+
+    // Set senderNorm from sender with the same toLowerCase() the server applies to usernames;
+    // SQLite's lower() would disagree on anything outside ASCII.
+    private static void backfillSenderNorm(Statement st) throws SQLException {
+        Map<Integer, String> fixes = new LinkedHashMap<>();
+        try (ResultSet rs = st.executeQuery("SELECT id, sender FROM messages WHERE senderNorm IS NULL")) {
+            while (rs.next()) {
+                String sender = rs.getString(2);
+                if (sender != null) fixes.put(rs.getInt(1), sender.toLowerCase());
+            }
+        }
+        if (fixes.isEmpty()) return;
+        conn.setAutoCommit(false);
+        try (PreparedStatement ps = conn.prepareStatement("UPDATE messages SET senderNorm = ? WHERE id = ?")) {
+            for (Map.Entry<Integer, String> f : fixes.entrySet()) {
+                ps.setString(1, f.getValue());
+                ps.setInt(2, f.getKey());
+                ps.addBatch();
+            }
+            ps.executeBatch();
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
         }
     }
 
+    private static boolean tableExists(Statement st, String table) throws SQLException {
+        try (ResultSet rs = st.executeQuery("SELECT 1 FROM sqlite_master WHERE type = 'table' AND name = '" + table + "'")) {
+            return rs.next();
+        }
+    }
+
+    // Pre-device databases: every user's single key becomes their first device, and each
+    // stored message gets a key row for that device carrying over its delivered flag.
+    private static void migrateToDevices(Statement st) throws SQLException {
+        Map<String, String> userKeys = new LinkedHashMap<>();
+        try (ResultSet rs = st.executeQuery("SELECT username, pubKeyB64 FROM users")) {
+            while (rs.next()) userKeys.put(rs.getString(1), rs.getString(2));
+        }
+        for (Map.Entry<String, String> e : userKeys.entrySet()) {
+            if (e.getValue() != null) addDevice(e.getKey(), Encryptor.deviceId(e.getValue()), e.getValue());
+        }
+        st.execute("INSERT OR IGNORE INTO message_keys(messageId, recipient, deviceId, encKeyB64, delivered) " +
+                "SELECT m.id, m.recipient, d.deviceId, m.encKeyB64, m.delivered FROM messages m " +
+                "JOIN devices d ON d.username = m.recipient WHERE m.encKeyB64 IS NOT NULL");
+    }
+
+    // older chat.db files predate some columns; add them in place. Returns true if added.
+    private static boolean addColumnIfMissing(Statement st, String table, String column, String type) throws SQLException {
+        try (ResultSet rs = st.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) return false;
+            }
+        }
+        st.execute("ALTER TABLE " + table + " ADD COLUMN " + column + " " + type);
+        return true;
+    }
+
     public static synchronized void close() {
         try {
             if (conn != null && !conn.isClosed()) {
@@ -59,43 +161,108 @@ public class DB {
         }
     }
 
-    public static synchronized String getPublicKey(String username) throws SQLException {
-        String sql = "SELECT pubKeyB64 FROM users WHERE username = ?";
+    public static synchronized String getDisplayName(String username) throws SQLException {
+        String sql = "SELECT displayName FROM users WHERE username = ?";
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, username);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getString("pubKeyB64");
-                return null;
+                if (rs.next()) return rs.getString("displayName");
+                return username;
             }
         }
     }
 
-    public static synchronized String getDisplayName(String username) throws SQLException {
-        String sql = "SELECT displayName FROM users WHERE username = ?";
+    public static synchronized void addDevice(String username, String deviceId, String pubKeyB64) throws SQLException {
+        String sql = "INSERT OR IGNORE INTO devices(username, deviceId, pubKeyB64, created) VALUES(?,?,?,?)";
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            ps.setString(2, deviceId);
+            ps.setString(3, pubKeyB64);
+            ps.setLong(4, System.currentTimeMillis());
+            ps.executeUpdate();
+        }
+    }
+
+    public static synchronized boolean deviceExists(String username, String deviceId) throws SQLException {
+        String sql = "SELECT 1 FROM devices WHERE username = ? AND deviceId = ?";
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, username);
+            ps.setString(2, deviceId);
             try (ResultSet rs = ps.executeQuery()) {
-                if (rs.next()) return rs.getString("displayName");
-                return username;
+                return rs.next();
             }
         }
     }
 
-    public static synchronized int storeMessage(String recipient, String sender, String encKeyB64, String ivB64, String cipherB64, boolean delivered) throws SQLException {
-        String sql = "INSERT INTO messages(recipient, sender, encKeyB64, ivB64, cipherB64, timestamp, delivered) VALUES(?,?,?,?,?,?,?)";
-        try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-            ps.setString(1, recipient);
-            ps.setString(2, sender);
-            ps.setString(3, encKeyB64);
-            ps.setString(4, ivB64);
-            ps.setString(5, cipherB64);
-            ps.setLong(6, System.currentTimeMillis());
-            ps.setInt(7, delivered ? 1 : 0);
-            ps.executeUpdate();
-            try (ResultSet rk = ps.getGeneratedKeys()) {
-                if (rk.next()) return rk.getInt(1);
-                return -1;
+    // deviceId -> pubKeyB64, oldest device first; empty if the user is unknown
+    public static synchronized Map<String, String> getDeviceKeys(String username) throws SQLException {
+        String sql = "SELECT deviceId, pubKeyB64 FROM devices WHERE username = ? ORDER BY created ASC";
+        Map<String, String> out = new LinkedHashMap<>();
+        try (PreparedStatement ps = conn.prepareStatement(sql)) {
+            ps.setString(1, username);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) out.put(rs.getString("deviceId"), rs.getString("pubKeyB64"));
+            }
+        }
+        return out;
+    }
+
+    // Store one ciphertext plus its per-device key wraps in a single transaction.
+    // recipientWraps are queued for delivery; selfWraps (the sender's own devices) are stored
+    // already delivered so they only show up in HISTORY. A resend of a clientMsgId this sender
+    // already used stores nothing and returns the existing id.
+    public static synchronized int storeMessage(String recipient, String senderNorm, String sender, String clientMsgId,
+                                                String ivB64, String cipherB64,
+                                                Map<String, String> recipientWraps, Map<String, String> selfWraps) throws SQLException {
+        try (PreparedStatement ps = conn.prepareStatement("SELECT id FROM messages WHERE senderNorm = ? AND clientMsgId = ?")) {
+            ps.setString(1, senderNorm);
+            ps.setString(2, clientMsgId);
+            try (ResultSet rs = ps.executeQuery()) {
+                if (rs.next()) return rs.getInt(1);
+            }
+        }
+        conn.setAutoCommit(false);
+        try {
+            int id;
+            String sql = "INSERT INTO messages(recipient, senderNorm, sender, clientMsgId, ivB64, cipherB64, timestamp) VALUES(?,?,?,?,?,?,?)";
+            try (PreparedStatement ps = conn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
+                ps.setString(1, recipient);
+                ps.setString(2, senderNorm);
+                ps.setString(3, sender);
+                ps.setString(4, clientMsgId);
+                ps.setString(5, ivB64);
+                ps.setString(6, cipherB64);
+                ps.setLong(7, System.currentTimeMillis());
+                ps.executeUpdate();
+                try (ResultSet rk = ps.getGeneratedKeys()) {
+                    id = rk.next() ? rk.getInt(1) : -1;
+                }
+            }
+            // plain INSERT: a (recipient, device) pair wrapped twice is a caller bug and fails the whole message
+            String keySql = "INSERT INTO message_keys(messageId, recipient, deviceId, encKeyB64, delivered) VALUES(?,?,?,?,?)";
+            try (PreparedStatement ps = conn.prepareStatement(keySql)) {
+                addKeyRows(ps, id, recipient, recipientWraps, 0);
+                addKeyRows(ps, id, senderNorm, selfWraps, 1);
+                ps.executeBatch();
             }
+            conn.commit();
+            return id;
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(true);
+        }
+    }
+
+    private static void addKeyRows(PreparedStatement ps, int id, String owner, Map<String, String> wraps, int delivered) throws SQLException {
+        for (Map.Entry<String, String> w : wraps.entrySet()) {
+            ps.setInt(1, id);
+            ps.setString(2, owner);
+            ps.setString(3, w.getKey());
+            ps.setString(4, w.getValue());
+            ps.setInt(5, delivered);
+            ps.addBatch();
         }
     }
 
@@ -114,11 +281,18 @@ public class DB {
         }
     }
 
-    public static synchronized List<MessageRow> getUndeliveredMessages(String recipient) throws SQLException {
-        String sql = "SELECT id, sender, encKeyB64, ivB64, cipherB64, timestamp FROM messages WHERE recipient = ? AND delivered = 0 ORDER BY id ASC";
+    // next page of messages not yet delivered to this device, after the last one already in flight
+    public static synchronized List<MessageRow> getUndeliveredMessages(String recipient, String deviceId, int afterId, int limit) throws SQLException {
+        String sql = "SELECT m.id, m.sender, k.encKeyB64, m.ivB64, m.cipherB64, m.timestamp " +
+                "FROM message_keys k JOIN messages m ON m.id = k.messageId " +
+                "WHERE k.recipient = ? AND k.deviceId = ? AND k.delivered = 0 AND k.messageId > ? " +
+                "ORDER BY k.messageId ASC LIMIT ?";
         List<MessageRow> out = new ArrayList<>();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
             ps.setString(1, recipient);
+            ps.setString(2, deviceId);
+            ps.setInt(3, afterId);
+            ps.setInt(4, limit);
             try (ResultSet rs = ps.executeQuery()) {
                 while (rs.next()) {
                     out.add(new MessageRow(
@@ -136,11 +310,70 @@ public class DB {
         return out;
     }
 
-    public static synchronized void markDelivered(int id) throws SQLException {
-        String sql = "UPDATE messages SET delivered = 1 WHERE id = ?";
+    // Mark acknowledged ranges delivered for one device in a single UPDATE. Each range is {lo, hi} inclusive.
+    // Scoped to the recipient's device so a client can only acknowledge its own messages.
+    public static synchronized int markDeliveredRanges(String recipient, String deviceId, List<int[]> ranges) throws SQLException {
+        if (ranges.isEmpty()) return 0;
+        StringBuilder sql = new StringBuilder("UPDATE message_keys SET delivered = 1 WHERE recipient = ? AND deviceId = ? AND delivered = 0 AND (");
+        for (int i = 0; i < ranges.size(); i++) {
+            if (i > 0) sql.append(" OR ");
+            sql.append("messageId BETWEEN ? AND ?");
+        }
+        sql.append(")");
+        try (PreparedStatement ps = conn.prepareStatement(sql.toString())) {
+            int idx = 1;
+            ps.setString(idx++, recipient);
+            ps.setString(idx++, deviceId);
+            for (int[] r : ranges) {
+                ps.setInt(idx++, r[0]);
+                ps.setInt(idx++, r[1]);
+            }
+            return ps.executeUpdate();
+        }
+    }
+
+    // One page of the conversation between `user` and `peer`, newest first, strictly older than
+    // beforeId (keyset cursor) and no older than sinceTs. Each direction is a bounded range scan
+    // on idx_messages_conv; the two halves are merged and cut to the page size. encKeyB64 is the
+    // wrap for the requesting device, or null if the message was never sealed for it.
+    public static synchronized List<MessageRow> getConversationPage(String user, String deviceId, String peer, int beforeId, long sinceTs, int limit) throws SQLException {
+        String half = "SELECT id, recipient, sender, ivB64, cipherB64, timestamp FROM messages " +
+                "WHERE recipient = ? AND senderNorm = ? AND id < ? AND timestamp >= ? ORDER BY id DESC LIMIT ?";
+        // a note-to-self conversation has only one direction
+        String[][] dirs = user.equals(peer) ? new String[][]{{user, peer}} : new String[][]{{user, peer}, {peer, user}};
+        String page = dirs.length == 1 ? half
+                : "SELECT * FROM (" + half + ") UNION ALL SELECT * FROM (" + half + ") ORDER BY id DESC LIMIT ?";
+        // both incoming and self-wrapped outgoing keys are filed under the requesting user
+        String sql = "SELECT p.*, k.encKeyB64 FROM (" + page + ") p " +
+                "LEFT JOIN message_keys k ON k.recipient = ? AND k.deviceId = ? AND k.messageId = p.id " +
+                "ORDER BY p.id DESC";
+        List<MessageRow> out = new ArrayList<>();
         try (PreparedStatement ps = conn.prepareStatement(sql)) {
-            ps.setInt(1, id);
-            ps.executeUpdate();
+            int idx = 1;
+            for (String[] dir : dirs) {
+                ps.setString(idx++, dir[0]);
+                ps.setString(idx++, dir[1]);
+                ps.setInt(idx++, beforeId);
+                ps.setLong(idx++, sinceTs);
+                ps.setInt(idx++, limit);
+            }
+            if (dirs.length > 1) ps.setInt(idx++, limit);
+            ps.setString(idx++, user);
+            ps.setString(idx, deviceId);
+            try (ResultSet rs = ps.executeQuery()) {
+                while (rs.next()) {
+                    out.add(new MessageRow(
+                            rs.getInt("id"),
+                            rs.getString("recipient"),
+                            rs.getString("sender"),
+                            rs.getString("encKeyB64"),
+                            rs.getString("ivB64"),
+                            rs.getString("cipherB64"),
+                            rs.getLong("timestamp")
+                    ));
+                }
+            }
         }
+        return out;
     }
 }
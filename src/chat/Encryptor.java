@@ -2,8 +2,10 @@ package chat;
 
 import javax.crypto.*;
 import javax.crypto.spec.GCMParameterSpec;
+import java.io.*;
 import java.security.*;
 import java.security.spec.*;
+import java.util.Arrays;
 import java.util.Base64;
 
 public class Encryptor {
@@ -70,6 +72,73 @@ public class Encryptor {
         return c.doFinal(cipherText);
     }
 
+    // Sealed records for the local stores (HistoryStore, Outbox): iv || AES-GCM ciphertext,
+    // written as <int length><record> frames.
+    private static final int IV_LEN = 12;
+
+    public static byte[] seal(byte[] plain, SecretKey key) throws Exception {
+        AesResult r = aesGcmEncrypt(plain, key);
+        byte[] out = new byte[r.iv.length + r.cipherText.length];
+        System.arraycopy(r.iv, 0, out, 0, r.iv.length);
+        System.arraycopy(r.cipherText, 0, out, r.iv.length, r.cipherText.length);
+        return out;
+    }
+
+    public static byte[] unseal(byte[] rec, SecretKey key) throws Exception {
+        return aesGcmDecrypt(Arrays.copyOfRange(rec, 0, IV_LEN), Arrays.copyOfRange(rec, IV_LEN, rec.length), key);
+    }
+
+    public static void writeFrame(OutputStream os, byte[] rec) throws IOException {
+        DataOutputStream d = new DataOutputStream(os);
+        d.writeInt(rec.length);
+        d.write(rec);
+    }
+
+    // null on clean EOF, a truncated trailing frame, or a length no sealed record can have
+    public static byte[] readFrame(DataInputStream in, int maxLen) throws IOException {
+        try {
+            int len = in.readInt();
+            if (len < IV_LEN || len > maxLen) return null;
+            byte[] rec = new byte[len];
+            in.readFully(rec);
+            return rec;
+        } catch (EOFException eof) {
+            return null;
+        }
+    }
+
+    // Signatures prove possession of a device key (REGISTER challenge); they never touch message keys
+    public static byte[] sign(byte[] data, PrivateKey priv) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initSign(priv);
+        sig.update(data);
+        return sig.sign();
+    }
+
+    public static boolean verify(byte[] data, byte[] signature, PublicKey pub) throws Exception {
+        Signature sig = Signature.getInstance("SHA256withRSA");
+        sig.initVerify(pub);
+        sig.update(data);
+        return sig.verify(signature);
+    }
+
+    // What a device signs to answer CHALLENGE: bound to the account so a proof can't be replayed elsewhere
+    public static byte[] registerProofData(String normalized, String nonceB64) {
+        return ("chat-register:" + normalized + ":" + nonceB64).getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    }
+
+    // Stable short id for a device: first 8 bytes of SHA-256 over its public key, in hex
+    public static String deviceId(String pubKeyB64) {
+        try {
+            byte[] h = MessageDigest.getInstance("SHA-256").digest(Base64.getDecoder().decode(pubKeyB64));
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < 8; i++) sb.append(String.format("%02x", h[i]));
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public static String toBase64(byte[] b) {
         return Base64.getEncoder().encodeToString(b);
     }
@@ -0,0 +1,356 @@
+package chat;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Local, encrypted chat history for one user.
+//
+// history/<user>.log  append-only records, each AES-GCM sealed with the history key
+// history/<user>.idx  append-only index blocks (also sealed): per record its log offset and terms
+//
+// Records are encrypted once at append time and written in batches by a background flusher.
+// On open, the index blocks are decrypted into an in-memory inverted index (term -> record
+// numbers); any log tail the index doesn't cover yet (crash between the two writes) is
+// re-indexed. Lookups intersect posting lists and decrypt only the records they return;
+// the newest HISTORY_RECENT entries are served straight from memory.
+public class HistoryStore {
+
+    public static class Entry {
+        public final int seq;
+        public final long ts;
+        public final boolean outgoing;
+        public final String peer;
+        public final String text;
+        Entry(int seq, long ts, boolean outgoing, String peer, String text) {
+            this.seq = seq;
+            this.ts = ts;
+            this.outgoing = outgoing;
+            this.peer = peer;
+            this.text = text;
+        }
+    }
+
+    // growable int array; posting lists hold millions of ids without boxing
+    private static class IntList {
+        int[] a = new int[4];
+        int size = 0;
+        void add(int v) {
+            if (size == a.length) a = Arrays.copyOf(a, size * 2);
+            a[size++] = v;
+        }
+    }
+
+    // a record appended since the last flush
+    private static class Pending {
+        final long offset;
+        final List<String> terms;
+        Pending(long offset, List<String> terms) {
+            this.offset = offset;
+            this.terms = terms;
+        }
+    }
+
+    private static final int MAX_TERM_LEN = 64;
+    private static final int MAX_RECORD = 16 * 1024 * 1024;
+
+    private final SecretKey key;
+    private final File logFile, idxFile;
+    private final RandomAccessFile reader;
+
+    // in-memory index
+    private long[] offsets = new long[1024];           // seq -> log offset
+    private int count = 0;
+    private final Map<String, IntList> postings = new HashMap<>();
+    private final ArrayDeque<Entry> recent = new ArrayDeque<>();
+
+    // appended but not yet on disk
+    private long logEnd;
+    private final ByteArrayOutputStream pendingLog = new ByteArrayOutputStream();
+    private final List<Pending> pendingIdx = new ArrayList<>();
+
+    private final Thread flusher;
+    private volatile boolean running = true;
+
+    public static HistoryStore open(String username, SecretKey key) throws Exception {
+        File dir = new File("history");
+        if (!dir.exists()) dir.mkdirs();
+        return new HistoryStore(new File(dir, username + ".log"), new File(dir, username + ".idx"), key);
+    }
+
+    private HistoryStore(File logFile, File idxFile, SecretKey key) throws Exception {
+        this.key = key;
+        this.logFile = logFile;
+        this.idxFile = idxFile;
+        if (!logFile.exists()) logFile.createNewFile();
+        if (!idxFile.exists()) idxFile.createNewFile();
+
+        long indexedEnd = loadIndex();
+        if (indexedEnd > logFile.length()) {
+            // the log lost data the index still points at; rebuild the index from the log
+            offsets = new long[1024];
+            count = 0;
+            postings.clear();
+            truncate(idxFile, 0);
+            indexedEnd = 0;
+        }
+        logEnd = recoverLogTail(indexedEnd);
+        this.reader = new RandomAccessFile(logFile, "r");
+        warmRecent();
+
+        flusher = new Thread(() -> {
+            while (running) {
+                try { Thread.sleep(Config.HISTORY_FLUSH_MS); } catch (InterruptedException ie) { break; }
+                try { flush(); } catch (IOException ioe) {
+                    System.out.println("[History] flush failed: " + ioe.getMessage());
+                }
+            }
+        }, "HistoryFlusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    public synchronized void append(long ts, boolean outgoing, String peer, String text) throws Exception {
+        int seq = count;
+        byte[] rec = Encryptor.seal(encodeEntry(ts, outgoing, peer, text), key);
+        long offset = logEnd;
+        Encryptor.writeFrame(pendingLog, rec);
+        logEnd += 4 + rec.length;
+
+        List<String> terms = termsOf(peer, text);
+        indexRecord(offset, terms);
+        pendingIdx.add(new Pending(offset, terms));
+        remember(new Entry(seq, ts, outgoing, peer, text));
+
+        if (pendingIdx.size() >= Config.HISTORY_BATCH) flush();
+    }
+
+    // newest-first messages matching every term. A plain word matches the text or the peer's
+    // name; "@name" matches the peer only.
+    public List<Entry> search(String query, int limit) throws IOException {
+        LinkedHashSet<String> terms = new LinkedHashSet<>();
+        for (String w : query.trim().split("\\s+")) {
+            if (w.length() > 1 && w.startsWith("@")) terms.add("@" + w.substring(1).toLowerCase());
+            else terms.addAll(tokenize(w));
+        }
+        if (terms.isEmpty()) return Collections.emptyList();
+        return lookup(terms, limit);
+    }
+
+    // newest-first conversation with one peer
+    public List<Entry> history(String peer, int limit) throws IOException {
+        return lookup(Collections.singletonList("@" + peer.toLowerCase()), limit);
+    }
+
+    private synchronized List<Entry> lookup(Collection<String> terms, int limit) throws IOException {
+        List<IntList> lists = new ArrayList<>();
+        for (String t : terms) {
+            IntList l = postings.get(t);
+            if (l == null) return Collections.emptyList();
+            lists.add(l);
+        }
+        lists.sort(Comparator.comparingInt(l -> l.size));
+
+        // walk the shortest list from the newest end; binary-search the others
+        List<Entry> out = new ArrayList<>();
+        IntList first = lists.get(0);
+        for (int i = first.size - 1; i >= 0 && out.size() < limit; i--) {
+            int seq = first.a[i];
+            boolean all = true;
+            for (int j = 1; j < lists.size() && all; j++) {
+                IntList other = lists.get(j);
+                all = Arrays.binarySearch(other.a, 0, other.size, seq) >= 0;
+            }
+            if (all) out.add(entryAt(seq));
+        }
+        return out;
+    }
+
+    private Entry entryAt(int seq) throws IOException {
+        Entry oldest = recent.peekFirst();
+        if (oldest != null && seq >= oldest.seq) {
+            for (Iterator<Entry> it = recent.descendingIterator(); it.hasNext(); ) {
+                Entry e = it.next();
+                if (e.seq == seq) return e;
+            }
+        }
+        // older than the in-memory window, so it is already flushed
+        reader.seek(offsets[seq]);
+        int len = reader.readInt();
+        byte[] rec = new byte[len];
+        reader.readFully(rec);
+        return decodeEntry(seq, unseal(rec));
+    }
+
+    public synchronized void flush() throws IOException {
+        if (pendingIdx.isEmpty()) return;
+        try (FileOutputStream fos = new FileOutputStream(logFile, true)) {
+            pendingLog.writeTo(fos);
+        }
+        // the index block goes second: if we crash in between, open() re-indexes the tail
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        try (DataOutputStream d = new DataOutputStream(block)) {
+            d.writeLong(logEnd);
+            d.writeInt(pendingIdx.size());
+            for (Pending p : pendingIdx) {
+                d.writeLong(p.offset);
+                d.writeInt(p.terms.size());
+                for (String t : p.terms) d.writeUTF(t);
+            }
+        }
+        try (FileOutputStream fos = new FileOutputStream(idxFile, true)) {
+            ByteArrayOutputStream framed = new ByteArrayOutputStream();
+            Encryptor.writeFrame(framed, sealIo(block.toByteArray()));
+            framed.writeTo(fos);
+        }
+        pendingLog.reset();
+        pendingIdx.clear();
+    }
+
+    public void close() {
+        running = false;
+        flusher.interrupt();
+        try { flush(); } catch (IOException ioe) {
+            System.out.println("[History] final flush failed: " + ioe.getMessage());
+        }
+        try { reader.close(); } catch (IOException ignored) {}
+    }
+
+    // ---- loading ----
+
+    // returns the log offset the index covers up to
+    private long loadIndex() throws Exception {
+        long indexedEnd = 0;
+        long good = 0;
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(idxFile)))) {
+            while (true) {
+                byte[] rec = Encryptor.readFrame(in, MAX_RECORD);
+                if (rec == null) break;
+                DataInputStream d = new DataInputStream(new ByteArrayInputStream(unseal(rec)));
+                long end = d.readLong();
+                int n = d.readInt();
+                for (int i = 0; i < n; i++) {
+                    long offset = d.readLong();
+                    int tc = d.readInt();
+                    List<String> terms = new ArrayList<>(tc);
+                    for (int j = 0; j < tc; j++) terms.add(d.readUTF());
+                    indexRecord(offset, terms);
+                }
+                indexedEnd = end;
+                good += 4 + rec.length;
+            }
+        }
+        truncate(idxFile, good);   // drop a half-written trailing block
+        return indexedEnd;
+    }
+
+    // index records appended after the last complete index block; returns the end of the log
+    private long recoverLogTail(long from) throws Exception {
+        long pos = from;
+        try (RandomAccessFile raf = new RandomAccessFile(logFile, "r")) {
+            raf.seek(from);
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(raf.getFD())));
+            while (true) {
+                byte[] rec = Encryptor.readFrame(in, MAX_RECORD);
+                if (rec == null) break;
+                Entry e = decodeEntry(count, unseal(rec));
+                List<String> terms = termsOf(e.peer, e.text);
+                indexRecord(pos, terms);
+                pendingIdx.add(new Pending(pos, terms));
+                pos += 4 + rec.length;
+            }
+        }
+        truncate(logFile, pos);    // drop a half-written trailing record
+        logEnd = pos;
+        // the records are already on disk; this only writes the missing index block
+        flush();
+        return pos;
+    }
+
+    private void warmRecent() throws IOException {
+        int start = Math.max(0, count - Config.HISTORY_RECENT);
+        for (int seq = start; seq < count; seq++) remember(entryAt(seq));
+    }
+
+    // ---- helpers ----
+
+    // The stored terms carry the peer only as "@name"; its words are posted here as plain
+    // terms too, so a bare name in a query finds the conversation (index files already on
+    // disk included).
+    private void indexRecord(long offset, List<String> terms) {
+        if (count == offsets.length) offsets = Arrays.copyOf(offsets, count * 2);
+        int seq = count++;
+        offsets[seq] = offset;
+        LinkedHashSet<String> all = new LinkedHashSet<>(terms);
+        for (String t : terms) {
+            if (t.startsWith("@")) all.addAll(tokenize(t.substring(1)));
+        }
+        for (String t : all) postings.computeIfAbsent(t, k -> new IntList()).add(seq);
+    }
+
+    private void remember(Entry e) {
+        recent.addLast(e);
+        if (recent.size() > Config.HISTORY_RECENT) recent.removeFirst();
+    }
+
+    private static List<String> termsOf(String peer, String text) {
+        LinkedHashSet<String> terms = new LinkedHashSet<>(tokenize(text));
+        terms.add("@" + peer.toLowerCase());
+        return new ArrayList<>(terms);
+    }
+
+    private static List<String> tokenize(String text) {
+        List<String> out = new ArrayList<>();
+        for (String t : text.toLowerCase().split("[^\\p{L}\\p{N}]+")) {
+            if (!t.isEmpty() && t.length() <= MAX_TERM_LEN) out.add(t);
+        }
+        return out;
+    }
+
+    private static byte[] encodeEntry(long ts, boolean outgoing, String peer, String text) throws IOException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        try (DataOutputStream d = new DataOutputStream(bos)) {
+            d.writeLong(ts);
+            d.writeBoolean(outgoing);
+            d.writeUTF(peer);
+            byte[] body = text.getBytes(StandardCharsets.UTF_8);
+            d.writeInt(body.length);
+            d.write(body);
+        }
+        return bos.toByteArray();
+    }
+
+    private static Entry decodeEntry(int seq, byte[] plain) throws IOException {
+        DataInputStream d = new DataInputStream(new ByteArrayInputStream(plain));
+        long ts = d.readLong();
+        boolean outgoing = d.readBoolean();
+        String peer = d.readUTF();
+        byte[] body = new byte[d.readInt()];
+        d.readFully(body);
+        return new Entry(seq, ts, outgoing, peer, new String(body, StandardCharsets.UTF_8));
+    }
+
+    private byte[] sealIo(byte[] plain) throws IOException {
+        try {
+            return Encryptor.seal(plain, key);
+        } catch (Exception e) {
+            throw new IOException("History encryption failed", e);
+        }
+    }
+
+    private byte[] unseal(byte[] rec) throws IOException {
+        try {
+            return Encryptor.unseal(rec, key);
+        } catch (Exception e) {
+            throw new IOException("History record failed to decrypt (wrong passphrase or corrupt file)", e);
+        }
+    }
+
+    private static void truncate(File f, long length) throws IOException {
+        if (f.length() <= length) return;
+        try (RandomAccessFile raf = new RandomAccessFile(f, "rw")) {
+            raf.setLength(length);
+        }
+    }
+}
@@ -85,6 +85,28 @@ public class KeyManager {
         return new KeyPair(pub, priv);
     }
 
+    // Derive a symmetric key for local storage (e.g. chat history) from the same passphrase.
+    // Each purpose gets its own random salt, kept next to the key file, so the result is
+    // independent of the key that wraps the private key.
+    public static SecretKey deriveStorageKey(String username, String passphrase, String purpose) throws Exception {
+        File dir = new File("keys");
+        if (!dir.exists()) dir.mkdirs();
+        File saltFile = new File(dir, username + "." + purpose + ".salt");
+
+        byte[] salt;
+        if (saltFile.exists()) {
+            try (FileInputStream fis = new FileInputStream(saltFile)) {
+                salt = Base64.getDecoder().decode(new String(fis.readAllBytes(), StandardCharsets.US_ASCII).trim());
+            }
+        } else {
+            salt = new byte[SALT_LEN]; RNG.nextBytes(salt);
+            try (FileOutputStream fos = new FileOutputStream(saltFile)) {
+                fos.write(Base64.getEncoder().encode(salt));
+            }
+        }
+        return deriveKey(passphrase, salt);
+    }
+
     private static SecretKey deriveKey(String passphrase, byte[] salt) throws Exception {
         PBEKeySpec spec = new PBEKeySpec(passphrase.toCharArray(), salt, PBKDF2_ITERS, KEY_BITS);
         SecretKeyFactory skf = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
@@ -0,0 +1,122 @@
+package chat;
+
+import javax.crypto.SecretKey;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+// Durable queue of outgoing MSG lines that the server has not acknowledged yet.
+//
+// outbox/<user>.log is append-only: "+<clientMsgId> <line>" when a message is queued (synced
+// to disk before it is sent), "-<clientMsgId>" when the server answers SENT/SAVED/REJECTED.
+// Records are AES-GCM sealed with a passphrase-derived key because the MSG lines name the
+// recipient. On open the log is replayed and rewritten with just the live entries.
+// Resending is always safe: the server deduplicates on (sender, clientMsgId).
+public class Outbox {
+    private static final int MAX_RECORD = 1024 * 1024;
+
+    private final SecretKey key;
+    private final File file;
+    private final LinkedHashMap<String, String> pending = new LinkedHashMap<>();   // clientMsgId -> MSG line
+    private FileOutputStream log;
+    private int records = 0;
+
+    public static Outbox open(String username, SecretKey key) throws Exception {
+        File dir = new File("outbox");
+        if (!dir.exists()) dir.mkdirs();
+        return new Outbox(new File(dir, username + ".log"), key);
+    }
+
+    private Outbox(File file, SecretKey key) throws Exception {
+        this.file = file;
+        this.key = key;
+        if (file.exists()) replay();
+        compact();
+    }
+
+    // persist before the line goes on the wire
+    public synchronized void add(String clientMsgId, String line) throws IOException {
+        pending.put(clientMsgId, line);
+        append("+" + clientMsgId + " " + line);
+        log.getFD().sync();
+    }
+
+    // Server has the message (or refused it for good). No fsync: losing this record only
+    // means one harmless, deduplicated resend. Once the log holds more than
+    // OUTBOX_COMPACT_RECORDS dead records it is rewritten, even if some lines are still queued.
+    public synchronized void remove(String clientMsgId) throws IOException {
+        if (pending.remove(clientMsgId) == null) return;
+        // records no longer live: every "-" plus the "+" each of them cancelled, this one included
+        if (records + 1 - pending.size() > Config.OUTBOX_COMPACT_RECORDS) {
+            compact();
+        } else {
+            append("-" + clientMsgId);
+        }
+    }
+
+    // up to `limit` queued entries (clientMsgId -> line), oldest first, skipping ids in `skip`
+    public synchronized Map<String, String> next(int limit, Set<String> skip) {
+        Map<String, String> out = new LinkedHashMap<>();
+        if (limit <= 0) return out;
+        for (Map.Entry<String, String> e : pending.entrySet()) {
+            if (skip.contains(e.getKey())) continue;
+            out.put(e.getKey(), e.getValue());
+            if (out.size() == limit) break;
+        }
+        return out;
+    }
+
+    public synchronized int size() {
+        return pending.size();
+    }
+
+    public synchronized void close() {
+        try { if (log != null) log.close(); } catch (IOException ignored) {}
+    }
+
+    private void replay() throws Exception {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            byte[] rec;
+            // stops at the clean end, or at a record cut off by a crash
+            while ((rec = Encryptor.readFrame(in, MAX_RECORD)) != null) {
+                String r = new String(Encryptor.unseal(rec, key), StandardCharsets.UTF_8);
+                if (r.startsWith("+")) {
+                    int sp = r.indexOf(' ');
+                    if (sp > 1) pending.put(r.substring(1, sp), r.substring(sp + 1));
+                } else if (r.startsWith("-")) {
+                    pending.remove(r.substring(1));
+                }
+            }
+        }
+    }
+
+    // rewrite the log with only the live entries, then keep appending to it
+    private void compact() throws IOException {
+        if (log != null) log.close();
+        File tmp = new File(file.getPath() + ".tmp");
+        log = new FileOutputStream(tmp);
+        records = 0;
+        for (Map.Entry<String, String> e : pending.entrySet()) append("+" + e.getKey() + " " + e.getValue());
+        log.getFD().sync();
+        log.close();
+        if (!tmp.renameTo(file)) {
+            file.delete();
+            if (!tmp.renameTo(file)) throw new IOException("Could not replace " + file);
+        }
+        log = new FileOutputStream(file, true);
+    }
+
+    private void append(String record) throws IOException {
+        byte[] sealed;
+        try {
+            sealed = Encryptor.seal(record.getBytes(StandardCharsets.UTF_8), key);
+        } catch (Exception e) {
+            throw new IOException("Outbox encryption failed", e);
+        }
+        // one write per record, so a crash can only cut off the last frame
+        ByteArrayOutputStream bos = new ByteArrayOutputStream(4 + sealed.length);
+        Encryptor.writeFrame(bos, sealed);
+        bos.writeTo(log);
+        records++;
+    }
+}
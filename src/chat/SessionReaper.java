@@ -0,0 +1,154 @@
+package chat;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Hashed timer wheel that keeps an eye on every open connection. Sessions are not
+// re-bucketed on every read (that would mean a lock per line); instead each slot
+// visit checks the session's real last activity and re-schedules it lazily.
+// Writes get their own entries (see watchWrite), so a stuck write is caught within
+// WRITE_TIMEOUT_MS of starting rather than at the next idle check.
+public class SessionReaper {
+
+    public interface Session {
+        long lastReadAt();        // millis of the last line received
+        long writeStartedAt();    // millis a blocked write began, 0 when not writing
+        boolean isRegistered();   // only registered sessions understand PING
+        boolean isClosed();
+        void ping();              // must not block: the reaper thread never writes to a socket
+        void kill(String reason);
+    }
+
+    private static class Entry {
+        final Session session;
+        final boolean write;      // a write watch rather than the regular idle check
+        long rounds;
+        Entry(Session session, boolean write, long rounds) {
+            this.session = session;
+            this.write = write;
+            this.rounds = rounds;
+        }
+    }
+
+    private final long tickMs;
+    private final List<List<Entry>> wheel;
+    private int cursor = 0;
+    // sessions with a write watch on the wheel; at most one each
+    private final Set<Session> watched = ConcurrentHashMap.newKeySet();
+    private volatile boolean running = true;
+
+    public SessionReaper(long tickMs, int slots) {
+        this.tickMs = tickMs;
+        this.wheel = new ArrayList<>(slots);
+        for (int i = 0; i < slots; i++) wheel.add(new ArrayList<>());
+    }
+
+    public void start() {
+        Thread t = new Thread(this::loop, "SessionReaper");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    public void add(Session session) {
+        schedule(session, false, Config.PING_INTERVAL_MS);
+    }
+
+    // Called right after a session sets writeStartedAt. Cheap when a watch is already
+    // pending: that watch follows writeStartedAt forward until no write is in progress.
+    public void watchWrite(Session session) {
+        if (watched.add(session)) schedule(session, true, Config.WRITE_TIMEOUT_MS + tickMs);
+    }
+
+    private synchronized void schedule(Session session, boolean write, long delayMs) {
+        long ticks = Math.max(1, (delayMs + tickMs - 1) / tickMs);
+        int slots = wheel.size();
+        int idx = (int) ((cursor + ticks) % slots);
+        wheel.get(idx).add(new Entry(session, write, (ticks - 1) / slots));
+    }
+
+    private void loop() {
+        long next = System.currentTimeMillis() + tickMs;
+        while (running) {
+            long sleep = next - System.currentTimeMillis();
+            if (sleep > 0) {
+                try { Thread.sleep(sleep); } catch (InterruptedException ie) { return; }
+            }
+            next += tickMs;
+            List<Entry> due = advance();
+            for (Entry e : due) {
+                if (e.write) checkWrite(e.session);
+                else check(e.session);
+            }
+        }
+    }
+
+    // move the cursor one slot; return entries whose time has come
+    private synchronized List<Entry> advance() {
+        cursor = (cursor + 1) % wheel.size();
+        List<Entry> slot = wheel.get(cursor);
+        List<Entry> due = new ArrayList<>();
+        Iterator<Entry> it = slot.iterator();
+        while (it.hasNext()) {
+            Entry e = it.next();
+            if (e.session.isClosed()) {
+                if (e.write) watched.remove(e.session);
+                it.remove();
+            } else if (e.rounds > 0) {
+                e.rounds--;
+            } else {
+                it.remove();
+                due.add(e);
+            }
+        }
+        return due;
+    }
+
+    private void check(Session s) {
+        if (s.isClosed()) return;
+        long now = System.currentTimeMillis();
+
+        long writeStart = s.writeStartedAt();
+        if (writeStart != 0 && now - writeStart > Config.WRITE_TIMEOUT_MS) {
+            s.kill("write timeout");
+            return;
+        }
+        long idle = now - s.lastReadAt();
+        if (idle >= Config.IDLE_TIMEOUT_MS) {
+            s.kill("idle timeout");
+            return;
+        }
+
+        long nextCheck;
+        if (idle >= Config.PING_INTERVAL_MS) {
+            // a write already in progress is its own liveness probe; it is timed out above
+            if (s.isRegistered() && writeStart == 0) s.ping();
+            nextCheck = Math.min(Config.PING_INTERVAL_MS, Config.IDLE_TIMEOUT_MS - idle);
+        } else {
+            nextCheck = Config.PING_INTERVAL_MS - idle;
+        }
+        schedule(s, false, nextCheck);
+    }
+
+    private void checkWrite(Session s) {
+        if (s.isClosed()) {
+            watched.remove(s);
+            return;
+        }
+        // Drop the watch before reading writeStartedAt: a write that starts after the read
+        // then finds no watch and registers a new one, so none goes unwatched.
+        watched.remove(s);
+        long writeStart = s.writeStartedAt();
+        if (writeStart == 0) return;
+        long age = System.currentTimeMillis() - writeStart;
+        if (age > Config.WRITE_TIMEOUT_MS) {
+            s.kill("write timeout");
+            return;
+        }
+        // a later write (or the same one, still young): follow it
+        if (watched.add(s)) schedule(s, true, Config.WRITE_TIMEOUT_MS - age + tickMs);
+    }
+}
@@ -0,0 +1,110 @@
+package chat;
+
+import org.jline.reader.EndOfFileException;
+import org.jline.reader.LineReader;
+import org.jline.reader.LineReaderBuilder;
+import org.jline.reader.UserInterruptException;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Terminal front-end for ChatClient. The input line is owned by a JLine LineReader; output
+// from any thread is queued by print() (never blocks) and a single render thread draws it
+// above the prompt with printAbove, one coalesced frame per UI_FRAME_MS. A burst larger than
+// one frame is drawn over the following frames, in order. Only when the queue itself
+// overflows are the oldest queued lines shed, and the scrollback is larger than the queue,
+// so those lines can still be reached with /scroll.
+public class TerminalUI {
+    private final Terminal terminal;
+    private final LineReader reader;
+
+    private final ConcurrentLinkedQueue<String> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pendingCount = new AtomicInteger();
+    private final AtomicInteger shed = new AtomicInteger();
+    private final ArrayDeque<String> scrollback = new ArrayDeque<>();
+
+    private final Thread renderer;
+    private volatile boolean running = true;
+
+    public TerminalUI() throws IOException {
+        terminal = TerminalBuilder.builder().system(true).dumb(true).build();   // dumb when piped, no warning
+        reader = LineReaderBuilder.builder().terminal(terminal).build();
+        renderer = new Thread(this::renderLoop, "UIRenderer");
+        renderer.setDaemon(true);
+        renderer.start();
+    }
+
+    // Safe from any thread; only touches in-memory queues.
+    public void print(String line) {
+        synchronized (scrollback) {
+            scrollback.addLast(line);
+            if (scrollback.size() > Config.UI_SCROLLBACK) scrollback.removeFirst();
+        }
+        pending.add(line);
+        // the renderer fell far behind: shed the oldest queued lines (they are in scrollback)
+        if (pendingCount.incrementAndGet() > Config.UI_MAX_PENDING && pending.poll() != null) {
+            pendingCount.decrementAndGet();
+            shed.incrementAndGet();
+        }
+    }
+
+    // Returns null on EOF (Ctrl+D) or interrupt (Ctrl+C).
+    public String readLine(String prompt) {
+        try {
+            return reader.readLine(prompt);
+        } catch (EndOfFileException | UserInterruptException e) {
+            return null;
+        }
+    }
+
+    // last n lines of scrollback, oldest first
+    public List<String> scrollback(int n) {
+        synchronized (scrollback) {
+            List<String> all = new ArrayList<>(scrollback);
+            return all.subList(Math.max(0, all.size() - n), all.size());
+        }
+    }
+
+    // Print a block directly, bypassing the queue and scrollback (used for /scroll itself).
+    public void printBlock(List<String> lines) {
+        if (lines.isEmpty()) return;
+        pending.add(String.join("\n", lines));
+        pendingCount.incrementAndGet();
+    }
+
+    private void renderLoop() {
+        while (running) {
+            try { Thread.sleep(Config.UI_FRAME_MS); } catch (InterruptedException ie) { break; }
+            renderFrame();
+        }
+        // closing: flush whatever is still queued
+        while (pendingCount.get() > 0 || shed.get() > 0) renderFrame();
+    }
+
+    // Oldest first, at most UI_MAX_FRAME_LINES; the rest waits for the next frame.
+    private void renderFrame() {
+        int n = Math.min(pendingCount.get(), Config.UI_MAX_FRAME_LINES);
+        int skipped = shed.getAndSet(0);
+        if (n == 0 && skipped == 0) return;
+        StringBuilder sb = new StringBuilder();
+        if (skipped > 0) sb.append("[UI] ").append(skipped).append(" lines skipped, see /scroll");
+        String line;
+        while (n-- > 0 && (line = pending.poll()) != null) {
+            pendingCount.decrementAndGet();
+            if (sb.length() > 0) sb.append('\n');
+            sb.append(line);
+        }
+        if (sb.length() > 0) reader.printAbove(sb.toString());
+    }
+
+    public void close() {
+        running = false;
+        renderer.interrupt();
+        try { renderer.join(500); } catch (InterruptedException ignored) {}
+        try { terminal.close(); } catch (IOException ignored) {}
+    }
+}
@@ -0,0 +1,135 @@
+package chat;
+
+import javax.net.ssl.*;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+
+// Socket factory for both sides. Plain TCP unless -Dchat.tls=true, then TLS 1.3:
+//  - server: key + certificate from a PKCS12 keystore (chat.tls.keystore)
+//  - client: trusts exactly one certificate (chat.tls.cert), compared byte-for-byte
+//
+// Both contexts are created once per process. The client context's session cache is what
+// makes reconnects cheap: TLS 1.3 session tickets from the server are kept there and the
+// next handshake to the same host:port resumes instead of redoing the full key exchange.
+//
+// That only holds while the server process lives. JSSE keeps its ticket-encryption keys and
+// session cache in memory, per SSLContext, with no API to persist or share them, so after a
+// server restart every ticket is rejected and each reconnect does a full handshake (see the
+// "after restart" case in TransportBenchmark).
+public class Tls {
+    private static final String PROTOCOL = "TLSv1.3";
+
+    private static SSLContext serverCtx = null;
+    private static SSLContext clientCtx = null;
+
+    public static ServerSocket serverSocket(int port, int backlog) throws Exception {
+        return serverSocket(port, backlog, Config.TLS_ENABLED);
+    }
+
+    public static Socket connect(String host, int port) throws Exception {
+        return connect(host, port, Config.TLS_ENABLED ? clientContext() : null);
+    }
+
+    // explicit variants for TransportBenchmark, which compares both modes in one process
+    static ServerSocket serverSocket(int port, int backlog, boolean tls) throws Exception {
+        return serverSocket(port, backlog, tls ? serverContext() : null);
+    }
+
+    static ServerSocket serverSocket(int port, int backlog, SSLContext ctx) throws Exception {
+        if (ctx == null) return new ServerSocket(port, backlog);
+        SSLServerSocket ss = (SSLServerSocket) ctx.getServerSocketFactory().createServerSocket(port, backlog);
+        ss.setEnabledProtocols(new String[]{PROTOCOL});
+        return ss;
+    }
+
+    static Socket connect(String host, int port, SSLContext ctx) throws Exception {
+        if (ctx == null) return new Socket(host, port);
+        // host/port form so the session cache can find a ticket for this server
+        SSLSocket s = (SSLSocket) ctx.getSocketFactory().createSocket(host, port);
+        s.setEnabledProtocols(new String[]{PROTOCOL});
+        s.setTcpNoDelay(true);   // handshake flights are small; don't let Nagle hold them back
+        s.startHandshake();   // fail here with a clear error rather than on the first readLine()
+        return s;
+    }
+
+    public static synchronized SSLContext serverContext() throws Exception {
+        if (serverCtx == null) serverCtx = newServerContext();
+        return serverCtx;
+    }
+
+    // a fresh server context is what a restarted server has: new ticket keys, empty session cache
+    static SSLContext newServerContext() throws Exception {
+        if (Config.TLS_PASSWORD == null) throw new IOException("TLS keystore password not set (CHAT_TLS_PASSWORD)");
+        char[] pass = Config.TLS_PASSWORD.toCharArray();
+        KeyStore ks = KeyStore.getInstance("PKCS12");
+        try (InputStream in = new FileInputStream(Config.TLS_KEYSTORE)) {
+            ks.load(in, pass);
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(ks, pass);
+
+        SSLContext ctx = SSLContext.getInstance(PROTOCOL);
+        ctx.init(kmf.getKeyManagers(), null, null);
+        SSLSessionContext sessions = ctx.getServerSessionContext();
+        sessions.setSessionCacheSize(Config.TLS_SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(Config.TLS_SESSION_TIMEOUT_S);
+        return ctx;
+    }
+
+    public static synchronized SSLContext clientContext() throws Exception {
+        if (clientCtx == null) clientCtx = newClientContext();
+        return clientCtx;
+    }
+
+    // a fresh context has an empty session cache, so its first handshake is always a full one
+    static SSLContext newClientContext() throws Exception {
+        X509Certificate pinned;
+        try (InputStream in = new FileInputStream(Config.TLS_CERT)) {
+            pinned = (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(in);
+        }
+        SSLContext ctx = SSLContext.getInstance(PROTOCOL);
+        ctx.init(null, new TrustManager[]{new PinnedTrustManager(pinned)}, null);
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        sessions.setSessionCacheSize(Config.TLS_SESSION_CACHE_SIZE);
+        sessions.setSessionTimeout(Config.TLS_SESSION_TIMEOUT_S);
+        return ctx;
+    }
+
+    // Accepts the server only if it presents exactly the pinned certificate.
+    private static class PinnedTrustManager implements X509TrustManager {
+        private final X509Certificate pinned;
+        private final byte[] pinnedEncoded;
+
+        PinnedTrustManager(X509Certificate pinned) throws Exception {
+            this.pinned = pinned;
+            this.pinnedEncoded = pinned.getEncoded();
+        }
+
+        @Override
+        public void checkServerTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            if (chain == null || chain.length == 0
+                    || !MessageDigest.isEqual(chain[0].getEncoded(), pinnedEncoded)) {
+                throw new CertificateException("Server certificate does not match pinned certificate");
+            }
+            chain[0].checkValidity();
+        }
+
+        @Override
+        public void checkClientTrusted(X509Certificate[] chain, String authType) throws CertificateException {
+            throw new CertificateException("Client certificates are not used");
+        }
+
+        @Override
+        public X509Certificate[] getAcceptedIssuers() {
+            return new X509Certificate[]{pinned};
+        }
+    }
+}
@@ -0,0 +1,32 @@
+package chat;
+
+// Simple token bucket: holds up to `capacity` tokens, refilled continuously at `refillPerSec`.
+// Buckets are per connection so they are almost never contended; synchronized just to stay safe.
+public class TokenBucket {
+    private final double capacity;
+    private final double refillPerNano;
+    private double tokens;
+    private long lastRefill;
+
+    public TokenBucket(double capacity, double refillPerSec) {
+        this.capacity = capacity;
+        this.refillPerNano = refillPerSec / 1_000_000_000.0;
+        this.tokens = capacity;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public synchronized boolean tryAcquire() {
+        if (!hasToken()) return false;
+        tokens -= 1.0;
+        return true;
+    }
+
+    // Refill and report whether a token is available, without spending it. Lets a caller check
+    // several buckets before committing to any of them.
+    public synchronized boolean hasToken() {
+        long now = System.nanoTime();
+        tokens = Math.min(capacity, tokens + (now - lastRefill) * refillPerNano);
+        lastRefill = now;
+        return tokens >= 1.0;
+    }
+}
@@ -0,0 +1,155 @@
+package chat;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Enumeration;
+
+// Compares plaintext and TLS transports against a local line-echo server:
+//  - connect + first round trip, plain / TLS full handshake / TLS resumed session /
+//    TLS reconnect to a restarted server (fresh server context, so the ticket is rejected).
+//    Both TLS handshake cases reuse one client context; the full-handshake case empties its
+//    session cache after every connect, so only the handshake itself differs.
+//  - single-connection echo throughput
+//
+// TLS runs use the same keystore (server) and pinned certificate (client) as the chat, e.g.
+//   CHAT_TLS_PASSWORD=... java -cp "bin;lib/*" -Dchat.tls.keystore=server.p12 -Dchat.tls.cert=server.crt chat.TransportBenchmark
+public class TransportBenchmark {
+    private static final int CONNECTS = 200;
+    // every case runs this many times and only the last round is printed: handshake cost on a
+    // cold JVM is mostly JIT warm-up, which would otherwise land on whichever case runs first
+    private static final int ROUNDS = 3;
+    private static final int LINES = 50_000;
+    private static final int LINE_BYTES = 256;
+
+    public static void main(String[] args) throws Exception {
+        int connects = args.length > 0 ? Integer.parseInt(args[0]) : CONNECTS;
+        int lines = args.length > 1 ? Integer.parseInt(args[1]) : LINES;
+        for (int round = 1; round <= ROUNDS; round++) runCases(connects, lines, round == ROUNDS);
+    }
+
+    private static void runCases(int connects, int lines, boolean print) throws Exception {
+        try (ServerSocket plain = Tls.serverSocket(0, 128, false)) {
+            startEcho(plain);
+            int port = plain.getLocalPort();
+            report(print, "plain   connect+rtt", connectLoop(port, connects, null, false, true), connects);
+            reportThroughput(print, "plain   throughput", port, lines, null);
+        }
+
+        try (ServerSocket tls = Tls.serverSocket(0, 128, true)) {
+            startEcho(tls);
+            int port = tls.getLocalPort();
+            SSLContext shared = Tls.newClientContext();
+            report(print, "tls     full handshake", connectLoop(port, connects, shared, true, false), connects);
+            connectLoop(port, 1, shared, true, true);   // prime the session cache
+            report(print, "tls     resumed", connectLoop(port, connects, shared, true, true), connects);
+            reportThroughput(print, "tls     throughput", port, lines, shared);
+        }
+
+        report(print, "tls     after restart", restartLoop(connects), connects);
+    }
+
+    // Each connect goes to a newly started server (fresh SSLContext, same port) while the client
+    // keeps its session cache, i.e. a reconnect after a server restart. Server startup is not timed.
+    private static long restartLoop(int n) throws Exception {
+        SSLContext shared = Tls.newClientContext();
+        int port;
+        try (ServerSocket first = Tls.serverSocket(0, 128, Tls.newServerContext())) {
+            startEcho(first);
+            port = first.getLocalPort();
+            connectLoop(port, 1, shared, true, true);   // client now holds a ticket from the first server
+        }
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            try (ServerSocket restarted = Tls.serverSocket(port, 128, Tls.newServerContext())) {
+                startEcho(restarted);
+                total += connectLoop(port, 1, shared, true, true);
+            }
+        }
+        return total;
+    }
+
+    // total nanos for `n` connect + one echo round trip; without `resume` the client's session
+    // cache is emptied after each connect (untimed), so every handshake is a full one
+    private static long connectLoop(int port, int n, SSLContext ctx, boolean tls, boolean resume) throws Exception {
+        long total = 0;
+        for (int i = 0; i < n; i++) {
+            long t0 = System.nanoTime();
+            try (Socket s = Tls.connect("localhost", port, tls ? ctx : null)) {
+                s.setTcpNoDelay(true);
+                PrintWriter out = new PrintWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8), true);
+                BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                out.println("PING");
+                in.readLine();
+            }
+            total += System.nanoTime() - t0;
+            if (tls && !resume) forgetSessions(ctx);
+        }
+        return total;
+    }
+
+    private static void forgetSessions(SSLContext ctx) {
+        SSLSessionContext sessions = ctx.getClientSessionContext();
+        for (Enumeration<byte[]> ids = sessions.getIds(); ids.hasMoreElements(); ) {
+            SSLSession s = sessions.getSession(ids.nextElement());
+            if (s != null) s.invalidate();
+        }
+    }
+
+    private static void reportThroughput(boolean print, String label, int port, int lines, SSLContext ctx) throws Exception {
+        char[] fill = new char[LINE_BYTES];
+        java.util.Arrays.fill(fill, 'x');
+        String payload = new String(fill);
+        try (Socket s = Tls.connect("localhost", port, ctx)) {
+            PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)));
+            BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+            long t0 = System.nanoTime();
+            Thread writer = new Thread(() -> {
+                for (int i = 0; i < lines; i++) out.println(payload);
+                out.flush();
+            });
+            writer.start();
+            for (int i = 0; i < lines; i++) in.readLine();
+            writer.join();
+            double secs = (System.nanoTime() - t0) / 1e9;
+            double mb = (double) lines * (LINE_BYTES + 1) / (1024 * 1024);
+            if (print) System.out.printf("%-24s %8.1f MB/s  (%d lines, %.2fs)%n", label, mb / secs, lines, secs);
+        }
+    }
+
+    private static void report(boolean print, String label, long nanos, int n) {
+        if (print) System.out.printf("%-24s %8.3f ms avg over %d%n", label, nanos / 1e6 / n, n);
+    }
+
+    private static void startEcho(ServerSocket ss) {
+        Thread t = new Thread(() -> {
+            while (!ss.isClosed()) {
+                try {
+                    Socket s = ss.accept();
+                    s.setTcpNoDelay(true);
+                    Thread h = new Thread(() -> {
+                        try (Socket c = s;
+                             BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8));
+                             PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(c.getOutputStream(), StandardCharsets.UTF_8)))) {
+                            String line;
+                            while ((line = in.readLine()) != null) {
+                                out.println(line);
+                                if (!in.ready()) out.flush();
+                            }
+                        } catch (IOException ignored) {}
+                    });
+                    h.setDaemon(true);
+                    h.start();
+                } catch (IOException e) {
+                    return;
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+}